@@ -0,0 +1,39 @@
+package com.redhat.labs.lodestar.engagements.health;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.health.HealthCheck;
+import org.eclipse.microprofile.health.HealthCheckResponse;
+import org.eclipse.microprofile.health.HealthCheckResponseBuilder;
+import org.eclipse.microprofile.health.Readiness;
+
+import com.redhat.labs.lodestar.engagements.repository.IndexReconciler;
+
+/**
+ * Reports declared indexes that are missing or differ from their declaration. Lookups and uniqueness are not
+ * guaranteed until it is fixed, but the service can still serve so drift does not fail readiness. A unique index
+ * that cannot be built over duplicate data would otherwise keep every pod out of service.
+ */
+@Readiness
+@ApplicationScoped
+public class IndexHealthCheck implements HealthCheck {
+
+    @Inject
+    IndexReconciler indexReconciler;
+
+    @Override
+    public HealthCheckResponse call() {
+        Map<String, List<String>> drift = indexReconciler.findDrift();
+        HealthCheckResponseBuilder builder = HealthCheckResponse.named("Mongo indexes");
+
+        drift.forEach((collection, indexes) -> builder.withData(collection, indexes.isEmpty() ? "ok" : String.join(",", indexes)));
+
+        builder.withData("drift", drift.values().stream().anyMatch(indexes -> !indexes.isEmpty()));
+
+        return builder.up().build();
+    }
+}
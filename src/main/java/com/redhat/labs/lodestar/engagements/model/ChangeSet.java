@@ -0,0 +1,26 @@
+package com.redhat.labs.lodestar.engagements.model;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The engagements changed between two versions. When reset is true the changes cannot be listed (a full refresh
+ * happened or the log no longer goes back that far) and everything should be re-read.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChangeSet {
+
+    private long version;
+    private boolean reset;
+
+    @Builder.Default
+    private Set<String> uuids = new TreeSet<>();
+}
@@ -0,0 +1,45 @@
+package com.redhat.labs.lodestar.engagements.model;
+
+import java.util.Optional;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
+
+import io.quarkus.mongodb.panache.PanacheMongoEntity;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A named counter shared by every instance. It only moves forward.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChangeVersion extends PanacheMongoEntity {
+
+    private String name;
+    private long value;
+
+    /**
+     * Reserves the next versions in one atomic update
+     * @param name the counter
+     * @param count the number of versions to reserve
+     * @return the last version reserved. The first is this minus count plus one
+     */
+    public static long increment(String name, long count) {
+        ChangeVersion version = ChangeVersion.<ChangeVersion>mongoCollection().findOneAndUpdate(Filters.eq("name", name), Updates.inc("value", count),
+                new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+
+        return version.getValue();
+    }
+
+    public static long current(String name) {
+        Optional<ChangeVersion> version = ChangeVersion.<ChangeVersion>find("name", name).firstResultOptional();
+        return version.map(ChangeVersion::getValue).orElse(0L);
+    }
+}
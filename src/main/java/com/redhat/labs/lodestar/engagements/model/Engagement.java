@@ -28,7 +28,7 @@ import lombok.NoArgsConstructor;
 @AllArgsConstructor
 @TypeName("Engagement")
 @EqualsAndHashCode
-@JsonIgnoreProperties(value = { "id", "gitlabRetry" })
+@JsonIgnoreProperties(value = { "id", "gitlabRetry", "engagementSha", "categorySha" })
 @JsonPropertyOrder(alphabetic = true)
 public class Engagement {
 
@@ -83,6 +83,15 @@ public class Engagement {
 
     private boolean gitlabRetry;
 
+    /**
+     * Blob ids of the engagement and category files this was last read from. A local update clears them so the
+     * next refresh reads the files again
+     */
+    @JsonbTransient
+    private String engagementSha;
+    @JsonbTransient
+    private String categorySha;
+
     @Builder.Default
     private Integer participantCount = 0;
     @Builder.Default
@@ -171,4 +180,26 @@ public class Engagement {
         return EngagementState.ACTIVE;
     }
 
+    /**
+     * The start date only matters for whether an engagement is upcoming which is changed by an update, not the
+     * passing of time. Time moves a launched engagement past the end date and then past the archive date.
+     * @param currentDate find the next change after this time
+     * @return the first instant after currentDate where {@link #getState(Instant)} returns a different state
+     */
+    public Optional<Instant> nextStateChange(Instant currentDate) {
+        if (launch == null || endDate == null || startDate == null) {
+            return Optional.empty();
+        }
+
+        if(!endDate.isBefore(currentDate)) { //active until just after the end date
+            return Optional.of(endDate.plusMillis(1));
+        }
+
+        if(archiveDate != null && archiveDate.isAfter(currentDate)) { //terminating until the archive date
+            return Optional.of(archiveDate);
+        }
+
+        return Optional.empty();
+    }
+
 }
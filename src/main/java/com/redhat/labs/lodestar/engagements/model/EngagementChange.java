@@ -0,0 +1,25 @@
+package com.redhat.labs.lodestar.engagements.model;
+
+import java.time.Instant;
+
+import io.quarkus.mongodb.panache.PanacheMongoEntity;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * One entry in the engagement change log. A reset means every engagement may have changed (a full refresh)
+ * and has no uuid.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class EngagementChange extends PanacheMongoEntity {
+
+    private long version;
+    private String uuid;
+    private boolean reset;
+    private Instant time;
+}
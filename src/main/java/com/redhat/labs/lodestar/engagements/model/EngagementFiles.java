@@ -0,0 +1,25 @@
+package com.redhat.labs.lodestar.engagements.model;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The engagement and category files of one gitlab project
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class EngagementFiles {
+
+    private Engagement engagement;
+
+    /**
+     * Null if the project has no category file or it was not read
+     */
+    private List<Category> categories;
+}
@@ -0,0 +1,27 @@
+package com.redhat.labs.lodestar.engagements.model;
+
+import java.time.Instant;
+
+import io.quarkus.mongodb.panache.PanacheMongoEntity;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The right to run a named job, held by one instance until it expires. The token goes up each time the lease
+ * changes hands and never goes down, so a holder that stalled past expiry cannot renew or release a lease that
+ * has since been taken.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class Lease extends PanacheMongoEntity {
+
+    private String name;
+    private String owner;
+    private long token;
+    private Instant acquired;
+    private Instant expires;
+}
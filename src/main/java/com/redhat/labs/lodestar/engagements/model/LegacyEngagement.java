@@ -0,0 +1,47 @@
+package com.redhat.labs.lodestar.engagements.model;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import io.quarkus.mongodb.panache.PanacheMongoEntity;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The parts of a project's legacy engagement.json that are carried over on each update, as of a commit. Lets an
+ * update be written without reading the legacy file first. Gitlab rejects the update if the file has had a
+ * commit since, in which case the file is read again.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class LegacyEngagement extends PanacheMongoEntity {
+
+    private int projectId;
+
+    /**
+     * The last commit to the legacy file. Null if the file was not found
+     */
+    private String lastCommitId;
+
+    /**
+     * Preserved subtrees (raw json) by field name
+     */
+    @Builder.Default
+    private Map<String, String> preserved = new HashMap<>();
+
+    private Instant updated;
+
+    public static Optional<LegacyEngagement> findByProjectId(int projectId) {
+        return find("projectId", projectId).firstResultOptional();
+    }
+
+    public static long deleteByProjectId(int projectId) {
+        return delete("projectId", projectId);
+    }
+}
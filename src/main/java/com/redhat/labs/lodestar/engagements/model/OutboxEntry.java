@@ -0,0 +1,49 @@
+package com.redhat.labs.lodestar.engagements.model;
+
+import java.time.Instant;
+
+import io.quarkus.mongodb.panache.PanacheMongoEntity;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A gitlab side effect waiting to be made. The engagement is a copy taken when the entry was written.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class OutboxEntry extends PanacheMongoEntity {
+
+    public enum Status { PENDING, IN_PROGRESS, DEAD }
+
+    /**
+     * One of the engagement or category event names
+     */
+    private String type;
+    private String engagementUuid;
+    private Engagement engagement;
+    private Status status;
+    private int attempts;
+    private Instant created;
+
+    /**
+     * Pending: when the next attempt may start. In progress: when the claim runs out and another worker may
+     * take the entry
+     */
+    private Instant due;
+    private String owner;
+    private String lastError;
+
+    /**
+     * Waiting for an earlier entry for the same engagement. Made due as soon as that entry is done
+     */
+    private boolean blocked;
+
+    /**
+     * The number of later updates folded into this one
+     */
+    private int coalesced;
+}
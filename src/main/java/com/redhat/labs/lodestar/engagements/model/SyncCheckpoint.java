@@ -0,0 +1,39 @@
+package com.redhat.labs.lodestar.engagements.model;
+
+import java.time.Instant;
+import java.util.Optional;
+
+import org.bson.BsonDocument;
+
+import io.quarkus.mongodb.panache.PanacheMongoEntity;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A persisted high-water mark. Lets a sync resume where the last one (on any pod) stopped.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class SyncCheckpoint extends PanacheMongoEntity {
+
+    private String name;
+
+    /**
+     * The most recent gitlab project activity that has been synced
+     */
+    private Instant lastActivity;
+
+    /**
+     * Where a mongo change stream stopped. Null if the checkpoint is not for a change stream
+     */
+    private BsonDocument resumeToken;
+
+    public static Optional<SyncCheckpoint> findByName(String name) {
+        return find("name", name).firstResultOptional();
+    }
+
+}
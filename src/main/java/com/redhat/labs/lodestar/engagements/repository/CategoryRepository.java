@@ -12,6 +12,7 @@ import static com.mongodb.client.model.Sorts.*;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -20,7 +21,10 @@ import javax.enterprise.context.ApplicationScoped;
 import com.redhat.labs.lodestar.engagements.utils.*;
 import org.bson.conversions.Bson;
 
+import com.mongodb.client.model.DeleteManyModel;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.WriteModel;
 import com.redhat.labs.lodestar.engagements.model.Category;
 import com.redhat.labs.lodestar.engagements.model.Counter;
 
@@ -38,7 +42,7 @@ public class CategoryRepository implements PanacheMongoRepository<Category> {
     public long countCategories(String engagementUuid) {
         return count("engagementUuid = ?1", engagementUuid);
     }
-    
+
     public List<Counter>  getCategoryCounts(List<String> regions, PageFilter paging) {
         List<Bson> bson = new ArrayList<>();
 
@@ -60,6 +64,32 @@ public class CategoryRepository implements PanacheMongoRepository<Category> {
         return findAll(Sort.by("name").and("engagementUuid")).page(page, pageSize).list();
     }
 
+    /**
+     * Replaces every category with the input list. Readers see the previous categories until the new set is
+     * fully loaded.
+     * @param categories the complete new set of categories
+     */
+    public void replaceAll(List<Category> categories) {
+        CollectionSwap.replaceAll(mongoDatabase(), mongoCollection(), categories, Category.class,
+                IndexReconciler.toIndexModels(IndexReconciler.CATEGORY_INDEXES));
+    }
+
+    /**
+     * Replaces the categories of each engagement in the map in one bulk write
+     * @param categories the full set of categories by engagement uuid. An empty list removes them all
+     */
+    public void replaceCategories(Map<String, List<Category>> categories) {
+        if(categories.isEmpty()) {
+            return;
+        }
+
+        List<WriteModel<Category>> writes = new ArrayList<>();
+        writes.add(new DeleteManyModel<>(Filters.in("engagementUuid", categories.keySet())));
+        categories.values().forEach(list -> list.forEach(c -> writes.add(new InsertOneModel<>(c))));
+
+        mongoCollection().bulkWrite(writes);
+    }
+
     public Set<String> getSuggestions(String partial) {
         Set<String> results = new TreeSet<>();
         find("name like ?1", partial).stream().forEach(c -> results.add(c.getName()));
@@ -0,0 +1,80 @@
+package com.redhat.labs.lodestar.engagements.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoException;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.RenameCollectionOptions;
+
+/**
+ * Replaces the full contents of a collection without readers seeing a partial data set. Documents are written to
+ * a staging collection, the declared indexes are built there and then the staging collection is renamed over the
+ * live one. The rename is atomic so the old data is served until the swap.
+ */
+class CollectionSwap {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CollectionSwap.class);
+    private static final String STAGING_SUFFIX = "_staging";
+    private static final int MAX_DUPLICATES_LOGGED = 20;
+
+    private CollectionSwap() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    static <T> void replaceAll(MongoDatabase database, MongoCollection<T> live, List<T> documents, Class<T> clazz, List<IndexModel> indexes) {
+        MongoNamespace liveNamespace = live.getNamespace();
+        String stagingName = liveNamespace.getCollectionName() + STAGING_SUFFIX;
+
+        MongoCollection<T> staging = database.getCollection(stagingName, clazz).withCodecRegistry(live.getCodecRegistry());
+        staging.drop();
+
+        if(documents.isEmpty()) {
+            database.createCollection(stagingName);
+        } else {
+            staging.insertMany(documents);
+        }
+
+        indexes.forEach(index -> createIndex(staging, index));
+
+        staging.renameCollection(liveNamespace, new RenameCollectionOptions().dropTarget(true));
+        LOGGER.debug("Swapped {} documents into {}", documents.size(), liveNamespace);
+    }
+
+    /**
+     * A unique index that cannot be built because of duplicates in the new data is skipped, and the duplicates are
+     * logged. The data is still swapped in. The missing index shows as drift until the duplicates are fixed in gitlab
+     */
+    private static void createIndex(MongoCollection<?> staging, IndexModel index) {
+        try {
+            staging.createIndexes(List.of(index));
+        } catch (MongoException e) {
+            if(!Boolean.TRUE.equals(index.getOptions().isUnique())) {
+                throw e;
+            }
+
+            LOGGER.error("Skipping unique index {} on {}. Duplicates {}", index.getOptions().getName(), staging.getNamespace(),
+                    findDuplicates(staging, index.getKeys().toBsonDocument()), e);
+        }
+    }
+
+    private static List<Document> findDuplicates(MongoCollection<?> collection, BsonDocument keys) {
+        Document group = new Document();
+        keys.keySet().forEach(k -> group.append(k.replace('.', '_'), "$" + k));
+
+        return collection.aggregate(List.of(
+                Aggregates.group(group, Accumulators.sum("count", 1)),
+                Aggregates.match(Filters.gt("count", 1)),
+                Aggregates.limit(MAX_DUPLICATES_LOGGED)), Document.class).into(new ArrayList<>());
+    }
+}
@@ -0,0 +1,36 @@
+package com.redhat.labs.lodestar.engagements.repository;
+
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Sorts.ascending;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import com.redhat.labs.lodestar.engagements.model.EngagementChange;
+
+import io.quarkus.mongodb.panache.PanacheMongoRepository;
+
+@ApplicationScoped
+public class EngagementChangeRepository implements PanacheMongoRepository<EngagementChange> {
+    private static final String VERSION = "version";
+
+    /**
+     * @param version exclusive
+     * @return changes after the version in version order
+     */
+    public List<EngagementChange> findSince(long version) {
+        return mongoCollection().find(gt(VERSION, version)).sort(ascending(VERSION)).into(new ArrayList<>());
+    }
+
+    /**
+     * Older changes are removed by a ttl index
+     * @return the oldest version still in the log
+     */
+    public Optional<Long> getOldestVersion() {
+        EngagementChange oldest = mongoCollection().find().sort(ascending(VERSION)).first();
+        return oldest == null ? Optional.empty() : Optional.of(oldest.getVersion());
+    }
+}
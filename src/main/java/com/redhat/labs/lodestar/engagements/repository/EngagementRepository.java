@@ -1,6 +1,7 @@
 package com.redhat.labs.lodestar.engagements.repository;
 
 import static com.mongodb.client.model.Aggregates.addFields;
+import static com.mongodb.client.model.Aggregates.group;
 import static com.mongodb.client.model.Aggregates.match;
 import static com.mongodb.client.model.Aggregates.replaceRoot;
 import static com.mongodb.client.model.Aggregates.sort;
@@ -14,16 +15,37 @@ import static com.mongodb.client.model.Sorts.descending;
 
 import java.time.Instant;
 import java.util.*;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import javax.enterprise.context.ApplicationScoped;
-
+import javax.inject.Inject;
+
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
 import com.redhat.labs.lodestar.engagements.model.EngagementState;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWriter;
+import org.bson.Document;
+import org.bson.codecs.EncoderContext;
 import org.bson.conversions.Bson;
 
 import com.mongodb.client.model.Field;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import com.redhat.labs.lodestar.engagements.utils.PageFilter;
 import com.redhat.labs.lodestar.engagements.model.Engagement;
 import com.redhat.labs.lodestar.engagements.model.UseCase;
@@ -32,14 +54,24 @@ import io.quarkus.mongodb.panache.PanacheMongoRepository;
 
 @ApplicationScoped
 public class EngagementRepository implements PanacheMongoRepository<Engagement> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EngagementRepository.class);
+
+    private static final String UUID_FIELD = "uuid";
+    private static final String BULK_TIMER = "lodestar.engagements.bulk.write";
+    private static final String BULK_DOCUMENTS = "lodestar.engagements.bulk.documents";
+
+    @Inject
+    MeterRegistry registry;
 
-    private static final String REGION = "region in :region";
-    private static final String TYPE = "'type' in :engagementType";
-    private static final String CATEGORY = "categories = :category";
+    @ConfigProperty(name = "bulk.write.batch.size")
+    int bulkBatchSize;
+
+    @ConfigProperty(name = "stream.batch.size")
+    int streamBatchSize;
 
     public List<Engagement> getEngagements(PageFilter pageFilter) {
-        return findAll(pageFilter.getPanacheSort())
-                .page(pageFilter.getPage(), pageFilter.getPageSize()).list();
+        return mongoCollection().find().projection(pageFilter.getProjection()).sort(pageFilter.getBsonSort())
+                .skip(pageFilter.getStartAt()).limit(pageFilter.getPageSize()).into(new ArrayList<>());
     }
 
     /**
@@ -55,25 +87,7 @@ public class EngagementRepository implements PanacheMongoRepository<Engagement>
         ors.add(eq("technicalLeadEmail", email));
         ors.add(eq("customerContactEmail", email));
         ors.add(in("uuid", engagementIds));
-        return mongoCollection().find(or(ors)).sort(pageFilter.getBsonSort()).skip(pageFilter.getStartAt()).limit(pageFilter.getPageSize()).into(new ArrayList<>());
-    }
-
-    public List<Engagement> getEngagements(PageFilter pageFilter, Set<String> regions, Set<String> types) {
-        String query = "";
-        Map<String, Object> params = new HashMap<>();
-
-        if(!regions.isEmpty()) {
-            query = REGION;
-            params.put("region", regions);
-        }
-
-        if(!types.isEmpty()) {
-            query = query.length() > 0 ? query + " and " + TYPE : TYPE;
-            params.put("engagementType", types);
-        }
-
-        return find(query, pageFilter.getPanacheSort(), params)
-                .page(pageFilter.getPage(), pageFilter.getPageSize()).list();
+        return mongoCollection().find(or(ors)).projection(pageFilter.getProjection()).sort(pageFilter.getBsonSort()).skip(pageFilter.getStartAt()).limit(pageFilter.getPageSize()).into(new ArrayList<>());
     }
 
     public long countEngagements(String searchInput, String category, Set<String> regions, Set<String> types, Set<EngagementState> states) {
@@ -82,10 +96,44 @@ public class EngagementRepository implements PanacheMongoRepository<Engagement>
     }
 
     public List<Engagement> findEngagements(PageFilter pageFilter, String searchInput, String category, Set<String> regions, Set<String> types, Set<EngagementState> states) {
+        return find(pageFilter, searchInput, category, regions, types, states)
+                .skip(pageFilter.getStartAt()).limit(pageFilter.getPageSize()).into(new ArrayList<>());
+    }
 
+    /**
+     * Nothing is read until the result is iterated. Every match is returned (page and page size are not applied)
+     * and is fetched from the database a batch at a time
+     */
+    public FindIterable<Engagement> streamEngagements(PageFilter pageFilter, String searchInput, String category, Set<String> regions, Set<String> types, Set<EngagementState> states) {
+        return find(pageFilter, searchInput, category, regions, types, states).batchSize(streamBatchSize);
+    }
+
+    private FindIterable<Engagement> find(PageFilter pageFilter, String searchInput, String category, Set<String> regions, Set<String> types, Set<EngagementState> states) {
         Bson finalQuery = createQuery(searchInput, category, regions, types, states);
 
-        return mongoCollection().find(finalQuery).sort(pageFilter.getBsonSort()).skip(pageFilter.getStartAt()).limit(pageFilter.getPageSize()).into(new ArrayList<>());
+        Bson afterFilter = pageFilter.getAfterFilter();
+        if(afterFilter != null) {
+            finalQuery = and(finalQuery, afterFilter);
+        }
+
+        return mongoCollection().find(finalQuery).projection(pageFilter.getProjection()).sort(pageFilter.getBsonSort());
+    }
+
+    /**
+     * @param pageFilter the paging used to find the page
+     * @param page the results of the page
+     * @return a token for the following page if this page is full
+     */
+    public Optional<String> getNextPageToken(PageFilter pageFilter, List<Engagement> page) {
+        if(page.isEmpty() || pageFilter.getPageSize() <= 0 || page.size() < pageFilter.getPageSize()) {
+            return Optional.empty();
+        }
+
+        BsonDocument last = new BsonDocument();
+        mongoCollection().getCodecRegistry().get(Engagement.class)
+                .encode(new BsonDocumentWriter(last), page.get(page.size() - 1), EncoderContext.builder().build());
+
+        return Optional.of(pageFilter.createAfter(last));
     }
 
     private Bson createQuery(String searchInput, String category, Set<String> regions, Set<String> types, Set<EngagementState> states) {
@@ -111,12 +159,31 @@ public class EngagementRepository implements PanacheMongoRepository<Engagement>
             ands.add(in("type", types));
         }
 
-        if(!states.isEmpty()) {
-            Set<String> statusValues = states.stream().map(st -> st.toString()).collect(Collectors.toSet());
-            ands.add(in("currentState", statusValues));
+        Bson stateFilter = EngagementStateQuery.filter(states, Instant.now());
+        if(stateFilter != null) {
+            ands.add(stateFilter);
         }
 
-        return and(ands);
+        return ands.isEmpty() ? new Document() : and(ands);
+    }
+
+    /**
+     * Only the fields needed to work out the next state change are loaded
+     * @param at the current time
+     * @return launched engagements that still have a state change ahead of them
+     */
+    public List<Engagement> findPendingStateChanges(Instant at) {
+        return mongoCollection().find(EngagementStateQuery.stateChangePending(at))
+                .projection(Projections.include(UUID_FIELD, "launch", "startDate", "endDate", "archiveDate"))
+                .into(new ArrayList<>());
+    }
+
+    /**
+     * @param at the current time
+     * @return engagements with a stored current state that no longer matches their dates
+     */
+    public List<Engagement> findEngagementsWithStaleState(Instant at) {
+        return mongoCollection().find(EngagementStateQuery.staleCurrentState(at)).into(new ArrayList<>());
     }
 
     public List<Engagement> findEngagementsWithoutLastUpdate() {
@@ -128,28 +195,32 @@ public class EngagementRepository implements PanacheMongoRepository<Engagement>
         return mongoCollection().countDocuments(query);
     }
 
-    private Query queryEngagements(Set<String> regions, Set<String> types, String category) {
-        String query = "";
-        Map<String, Object> params = new HashMap<>();
-
-        if(!regions.isEmpty()) {
-            query = REGION;
-            params.put("region", regions);
-        }
-
-        if(category != null) {
-            query = query.length() > 0 ? query + " and " + CATEGORY : CATEGORY;
-            params.put("category", category);
-        }
-
-        if(!types.isEmpty()) {
-            query = query.length() > 0 ? query + " and " + TYPE : TYPE;
-            params.put("engagementType", types);
+    /**
+     * Counts engagements by the state they are in at the given time. The state is derived in the database from
+     * the engagement dates so the stored current state does not need to be up to date.
+     * @param at the time used to determine state
+     * @param regions only count these regions. Empty for all
+     * @param types only count these types. Empty for all
+     * @return a count for each state with at least one engagement plus the total as ANY
+     */
+    public Map<EngagementState, Integer> countEngagementsByState(Instant at, Set<String> regions, Set<String> types) {
+        List<Bson> pipeline = new ArrayList<>();
+        pipeline.add(match(createQuery(null, null, regions, types, Collections.emptySet())));
+        pipeline.add(group(EngagementStateQuery.expression(at), Accumulators.sum("count", 1)));
+
+        Map<EngagementState, Integer> statusCounts = new EnumMap<>(EngagementState.class);
+        int total = 0;
+
+        for(Document stateCount : mongoCollection().aggregate(pipeline, Document.class)) {
+            int count = stateCount.getInteger("count");
+            statusCounts.put(EngagementState.valueOf(stateCount.getString("_id")), count);
+            total += count;
         }
 
-        return new Query(query, params);
+        statusCounts.put(EngagementState.ANY, total);
+        return statusCounts;
     }
-    
+
     /**
      * match if uuid exists (basically is there a use case needed for add fields)
      * addFields - adds some sugar to the use case with engagement info
@@ -197,14 +268,8 @@ public class EngagementRepository implements PanacheMongoRepository<Engagement>
         return Optional.empty();
     }
     
-    public List<Engagement> getEngagementsWithCategory(String category, PageFilter pageFilter, Set<String> regions, Set<String> types) {
-        Query q = queryEngagements(regions, types, category);
-        return find(q.value, pageFilter.getPanacheSort(), q.parameters)
-                .page(pageFilter.getPage(), pageFilter.getPageSize()).list();
-    }
-
     public Optional<Engagement> getEngagement(String uuid) {
-        return find("uuid", uuid).singleResultOptional();
+        return find(UUID_FIELD, uuid).singleResultOptional();
     }
 
     public Optional<Engagement> getEngagementByProject(int projectId) {
@@ -237,12 +302,75 @@ public class EngagementRepository implements PanacheMongoRepository<Engagement>
         return getByCustomerNameAndEngagementName(customerName, engagementName).isPresent();
     }
     
-    public long purge() {
-        return deleteAll();
+    /**
+     * Replaces every engagement with the input list. Readers see the previous engagements until the new set
+     * is fully loaded.
+     * @param engagements the complete new set of engagements
+     */
+    public void replaceAll(List<Engagement> engagements) {
+        CollectionSwap.replaceAll(mongoDatabase(), mongoCollection(), engagements, Engagement.class,
+                IndexReconciler.toIndexModels(IndexReconciler.ENGAGEMENT_INDEXES));
     }
-    
-    public void persistAll(List<Engagement> engagements) {
-        persist(engagements);
+
+    /**
+     * Replaces each engagement with the same uuid or inserts it if there isn't one
+     * @param engagements the engagements to write
+     * @return the number of engagements modified or inserted
+     */
+    public long bulkUpsert(List<Engagement> engagements) {
+        ReplaceOptions upsert = new ReplaceOptions().upsert(true);
+        List<WriteModel<Engagement>> writes = engagements.stream()
+                .map(e -> new ReplaceOneModel<>(eq(UUID_FIELD, e.getUuid()), e, upsert)).collect(Collectors.toList());
+
+        return bulkWrite("upsert", writes);
+    }
+
+    /**
+     * Writes the current state of each engagement. Nothing else is changed
+     * @param engagements engagements with a current state set
+     * @return the number of engagements modified
+     */
+    public long updateStates(List<Engagement> engagements) {
+        return bulkUpdate("state", engagements, e -> Updates.set("currentState", e.getCurrentState().name()));
+    }
+
+    /**
+     * Writes the last update of each engagement. Nothing else is changed
+     * @param engagements engagements with last update set
+     * @return the number of engagements modified
+     */
+    public long updateLastUpdates(List<Engagement> engagements) {
+        return bulkUpdate("lastUpdate", engagements, e -> Updates.set("lastUpdate", e.getLastUpdate()));
+    }
+
+    private long bulkUpdate(String operation, List<Engagement> engagements, Function<Engagement, Bson> update) {
+        List<WriteModel<Engagement>> writes = engagements.stream()
+                .map(e -> new UpdateOneModel<Engagement>(eq(UUID_FIELD, e.getUuid()), update.apply(e))).collect(Collectors.toList());
+
+        return bulkWrite(operation, writes);
+    }
+
+    /**
+     * Unordered so a failure in one write does not stop the rest of the batch. One round trip per batch
+     */
+    private long bulkWrite(String operation, List<WriteModel<Engagement>> writes) {
+        long changed = 0;
+        BulkWriteOptions unordered = new BulkWriteOptions().ordered(false);
+
+        for(int start = 0; start < writes.size(); start += bulkBatchSize) {
+            List<WriteModel<Engagement>> batch = writes.subList(start, Math.min(start + bulkBatchSize, writes.size()));
+
+            Timer.Sample sample = Timer.start(registry);
+            BulkWriteResult result = mongoCollection().bulkWrite(batch, unordered);
+            long nanos = sample.stop(registry.timer(BULK_TIMER, "operation", operation));
+            registry.counter(BULK_DOCUMENTS, "operation", operation).increment(batch.size());
+
+            LOGGER.debug("Bulk {} batch of {}. matched {} modified {} upserted {} in {}ms", operation, batch.size(),
+                    result.getMatchedCount(), result.getModifiedCount(), result.getUpserts().size(), nanos / 1_000_000);
+            changed += result.getModifiedCount() + result.getUpserts().size();
+        }
+
+        return changed;
     }
 
     /**
@@ -264,11 +392,11 @@ public class EngagementRepository implements PanacheMongoRepository<Engagement>
     }
 
     public void updateCount(String uuid, int count, String column) {
-        update(column, count).where("uuid", uuid);
+        update(column, count).where(UUID_FIELD, uuid);
     }
 
     public void updateLastUpdate(String uuid, Instant time) {
-        update("lastUpdate", time).where("uuid", uuid);
+        update("lastUpdate", time).where(UUID_FIELD, uuid);
     }
     
     public enum Columns {
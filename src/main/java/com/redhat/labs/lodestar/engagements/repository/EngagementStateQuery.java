@@ -0,0 +1,124 @@
+package com.redhat.labs.lodestar.engagements.repository;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Filters.ne;
+import static com.mongodb.client.model.Filters.or;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.redhat.labs.lodestar.engagements.model.EngagementState;
+
+/**
+ * Mongo equivalents of {@link com.redhat.labs.lodestar.engagements.model.Engagement#getState(Instant)} so that
+ * state can be derived for any point in time without loading the engagements. The filters are plain range
+ * predicates on the date fields so they can be served by an index.
+ */
+class EngagementStateQuery {
+    private static final String LAUNCH = "launch";
+    private static final String START_DATE = "startDate";
+    private static final String END_DATE = "endDate";
+    private static final String ARCHIVE_DATE = "archiveDate";
+    private static final String CURRENT_STATE = "currentState";
+
+    private EngagementStateQuery() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * @param states match any of these states. ANY or empty matches everything
+     * @param at the point in time the state is derived for
+     * @return a filter or null if no filter is needed
+     */
+    static Bson filter(Set<EngagementState> states, Instant at) {
+        if(states.isEmpty() || states.contains(EngagementState.ANY)) {
+            return null;
+        }
+
+        List<Bson> ors = new ArrayList<>();
+        states.forEach(state -> ors.add(filter(state, at)));
+
+        return ors.size() == 1 ? ors.get(0) : or(ors);
+    }
+
+    static Bson filter(EngagementState state, Instant at) {
+        switch (state) {
+        case UPCOMING:
+            return or(eq(LAUNCH, null), eq(START_DATE, null), eq(END_DATE, null));
+        case ACTIVE:
+            return and(ne(LAUNCH, null), ne(START_DATE, null), gte(END_DATE, at));
+        case TERMINATING:
+            return and(ne(LAUNCH, null), ne(START_DATE, null), lt(END_DATE, at), gt(ARCHIVE_DATE, at));
+        case PAST:
+            return and(ne(LAUNCH, null), ne(START_DATE, null), lt(END_DATE, at), or(eq(ARCHIVE_DATE, null), lte(ARCHIVE_DATE, at)));
+        default:
+            return new Document();
+        }
+    }
+
+    /**
+     * @param at the point in time the state is derived for
+     * @return a filter matching engagements where the stored current state is not the derived state
+     */
+    static Bson staleCurrentState(Instant at) {
+        List<Bson> ors = new ArrayList<>();
+        for(EngagementState state : EngagementState.values()) {
+            if(state != EngagementState.ANY) {
+                ors.add(and(filter(state, at), ne(CURRENT_STATE, state.name())));
+            }
+        }
+
+        return or(ors);
+    }
+
+    /**
+     * @param at the point in time the state is derived for
+     * @return a filter matching launched engagements that have not yet passed their end or archive dates
+     */
+    static Bson stateChangePending(Instant at) {
+        return and(ne(LAUNCH, null), ne(START_DATE, null), or(gte(END_DATE, at), gt(ARCHIVE_DATE, at)));
+    }
+
+    /**
+     * An aggregation expression that evaluates to the state name of the current document
+     * @param at the point in time the state is derived for
+     * @return a $switch expression
+     */
+    static Document expression(Instant at) {
+        Date date = Date.from(at);
+
+        Document notLaunched = new Document("$or", List.of(isNull(LAUNCH), isNull(START_DATE), isNull(END_DATE)));
+        Document active = new Document("$gte", List.of("$" + END_DATE, date));
+        Document terminating = new Document("$gt", List.of(new Document("$ifNull", Arrays.asList("$" + ARCHIVE_DATE, null)), date));
+
+        List<Document> branches = List.of(
+                branch(notLaunched, EngagementState.UPCOMING),
+                branch(active, EngagementState.ACTIVE),
+                branch(terminating, EngagementState.TERMINATING));
+
+        return new Document("$switch", new Document("branches", branches).append("default", EngagementState.PAST.name()));
+    }
+
+    private static Document branch(Document condition, EngagementState state) {
+        return new Document("case", condition).append("then", state.name());
+    }
+
+    /**
+     * Fields that are not set are not stored so $ifNull is needed to treat missing and null the same
+     */
+    private static Document isNull(String field) {
+        return new Document("$eq", Arrays.asList(new Document("$ifNull", Arrays.asList("$" + field, null)), null));
+    }
+}
@@ -0,0 +1,157 @@
+package com.redhat.labs.lodestar.engagements.repository;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.bson.Document;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexModel;
+import com.redhat.labs.lodestar.engagements.model.ChangeVersion;
+import com.redhat.labs.lodestar.engagements.model.Lease;
+import com.redhat.labs.lodestar.engagements.model.LegacyEngagement;
+import com.redhat.labs.lodestar.engagements.model.OutboxEntry;
+
+import io.quarkus.runtime.StartupEvent;
+
+/**
+ * Declares the indexes the repositories depend on and creates any that are missing at startup. Indexes are never
+ * dropped or rebuilt here. An index that exists with different keys or options is reported as drift and left for
+ * an operator to fix.
+ */
+@ApplicationScoped
+public class IndexReconciler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IndexReconciler.class);
+    private static final String UUID = "uuid";
+    private static final String END_DATE = "endDate";
+
+    static final List<ManagedIndex> ENGAGEMENT_INDEXES = List.of(
+            ManagedIndex.unique("uuid_unique", new Document(UUID, 1)),
+            ManagedIndex.unique("customer_name_unique", new Document("customerName", 1).append("name", 1)),
+            ManagedIndex.of("project_id", new Document("projectId", 1)),
+            ManagedIndex.of("use_case_uuid", new Document("useCases.uuid", 1)),
+            ManagedIndex.of("last_update_uuid", new Document("lastUpdate", -1).append(UUID, 1)),
+            ManagedIndex.of("end_archive_date", new Document(END_DATE, 1).append("archiveDate", 1)),
+            ManagedIndex.of("region_type_end_date", new Document("region", 1).append("type", 1).append(END_DATE, 1)));
+
+    static final List<ManagedIndex> CATEGORY_INDEXES = List.of(
+            ManagedIndex.of("engagement_uuid", new Document("engagementUuid", 1)),
+            ManagedIndex.of("name_engagement_uuid", new Document("name", 1).append("engagementUuid", 1)));
+
+    static final List<ManagedIndex> LEASE_INDEXES = List.of(
+            ManagedIndex.unique("name_unique", new Document("name", 1)));
+
+    static final List<ManagedIndex> CHANGE_VERSION_INDEXES = List.of(
+            ManagedIndex.unique("name_unique", new Document("name", 1)));
+
+    static final List<ManagedIndex> OUTBOX_INDEXES = List.of(
+            ManagedIndex.of("status_due_created", new Document("status", 1).append("due", 1).append("created", 1)),
+            ManagedIndex.of("status_created", new Document("status", 1).append("created", 1)),
+            ManagedIndex.of("engagement_uuid_status", new Document("engagementUuid", 1).append("status", 1)));
+
+    static final List<ManagedIndex> LEGACY_INDEXES = List.of(
+            ManagedIndex.unique("project_id_unique", new Document("projectId", 1)));
+
+    @Inject
+    EngagementRepository engagementRepository;
+
+    @Inject
+    CategoryRepository categoryRepository;
+
+    @Inject
+    EngagementChangeRepository engagementChangeRepository;
+
+    @ConfigProperty(name = "changes.retention")
+    Duration changeRetention;
+
+    void onStart(@Observes StartupEvent event) {
+        reconcile();
+    }
+
+    public void reconcile() {
+        reconcile(engagementRepository.mongoCollection(), ENGAGEMENT_INDEXES);
+        reconcile(categoryRepository.mongoCollection(), CATEGORY_INDEXES);
+        reconcile(engagementChangeRepository.mongoCollection(), changeIndexes());
+        reconcile(ChangeVersion.mongoCollection(), CHANGE_VERSION_INDEXES);
+        reconcile(Lease.mongoCollection(), LEASE_INDEXES);
+        reconcile(OutboxEntry.mongoCollection(), OUTBOX_INDEXES);
+        reconcile(LegacyEngagement.mongoCollection(), LEGACY_INDEXES);
+    }
+
+    /**
+     * @return collection name mapped to the declared indexes that are missing or do not match the declaration
+     */
+    public Map<String, List<String>> findDrift() {
+        Map<String, List<String>> drift = new TreeMap<>();
+        drift.put(engagementRepository.mongoCollection().getNamespace().getCollectionName(),
+                findDrift(engagementRepository.mongoCollection(), ENGAGEMENT_INDEXES));
+        drift.put(categoryRepository.mongoCollection().getNamespace().getCollectionName(),
+                findDrift(categoryRepository.mongoCollection(), CATEGORY_INDEXES));
+        drift.put(engagementChangeRepository.mongoCollection().getNamespace().getCollectionName(),
+                findDrift(engagementChangeRepository.mongoCollection(), changeIndexes()));
+        drift.put(ChangeVersion.mongoCollection().getNamespace().getCollectionName(),
+                findDrift(ChangeVersion.mongoCollection(), CHANGE_VERSION_INDEXES));
+        drift.put(Lease.mongoCollection().getNamespace().getCollectionName(), findDrift(Lease.mongoCollection(), LEASE_INDEXES));
+        drift.put(OutboxEntry.mongoCollection().getNamespace().getCollectionName(), findDrift(OutboxEntry.mongoCollection(), OUTBOX_INDEXES));
+        drift.put(LegacyEngagement.mongoCollection().getNamespace().getCollectionName(), findDrift(LegacyEngagement.mongoCollection(), LEGACY_INDEXES));
+
+        return drift;
+    }
+
+    /**
+     * The change log is trimmed by a ttl index so the retention comes from config
+     */
+    List<ManagedIndex> changeIndexes() {
+        return List.of(
+                ManagedIndex.unique("version_unique", new Document("version", 1)),
+                ManagedIndex.ttl("time_ttl", "time", changeRetention));
+    }
+
+    static List<IndexModel> toIndexModels(List<ManagedIndex> declared) {
+        return declared.stream().map(ManagedIndex::toIndexModel).collect(Collectors.toList());
+    }
+
+    private void reconcile(MongoCollection<?> collection, List<ManagedIndex> declared) {
+        List<Document> existing = collection.listIndexes().into(new ArrayList<>());
+
+        for(ManagedIndex index : declared) {
+            if(existing.stream().anyMatch(index::matches)) {
+                continue;
+            }
+
+            Optional<Document> sameName = existing.stream().filter(e -> index.getName().equals(e.getString("name"))).findFirst();
+
+            if(sameName.isPresent()) {
+                LOGGER.warn("Index {} on {} does not match its declaration {}. Found {}", index.getName(), collection.getNamespace(),
+                        index, sameName.get().toJson());
+            } else {
+                createIndex(collection, index);
+            }
+        }
+    }
+
+    private void createIndex(MongoCollection<?> collection, ManagedIndex index) {
+        try {
+            collection.createIndexes(List.of(index.toIndexModel()));
+            LOGGER.info("Created index {} on {}", index.getName(), collection.getNamespace());
+        } catch (MongoException e) {
+            LOGGER.error("Unable to create index {} on {}", index.getName(), collection.getNamespace(), e);
+        }
+    }
+
+    private List<String> findDrift(MongoCollection<?> collection, List<ManagedIndex> declared) {
+        List<Document> existing = collection.listIndexes().into(new ArrayList<>());
+
+        return declared.stream().filter(index -> existing.stream().noneMatch(index::matches))
+                .map(ManagedIndex::getName).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,86 @@
+package com.redhat.labs.lodestar.engagements.repository;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * An index the service depends on. Identified by name so that a change to the keys or options of a declared
+ * index shows up as drift rather than as a second index.
+ */
+@Data
+@AllArgsConstructor
+class ManagedIndex {
+
+    private String name;
+
+    /**
+     * Field name mapped to 1 (ascending) or -1 (descending) in index order
+     */
+    private Document keys;
+    private boolean unique;
+
+    /**
+     * Documents are removed this long after the date in the (single) key field. Null if the index has no ttl
+     */
+    private Long expireAfterSeconds;
+
+    static ManagedIndex of(String name, Document keys) {
+        return new ManagedIndex(name, keys, false, null);
+    }
+
+    static ManagedIndex unique(String name, Document keys) {
+        return new ManagedIndex(name, keys, true, null);
+    }
+
+    static ManagedIndex ttl(String name, String dateField, Duration expireAfter) {
+        return new ManagedIndex(name, new Document(dateField, 1), false, expireAfter.getSeconds());
+    }
+
+    IndexModel toIndexModel() {
+        IndexOptions options = new IndexOptions().name(name).unique(unique);
+
+        if(expireAfterSeconds != null) {
+            options.expireAfter(expireAfterSeconds, TimeUnit.SECONDS);
+        }
+
+        return new IndexModel(keys, options);
+    }
+
+    /**
+     * @param existing an index as returned by listIndexes
+     * @return true if the existing index has the same keys, in the same order, and the same options
+     */
+    boolean matches(Document existing) {
+        Number existingExpiry = existing.get("expireAfterSeconds", Number.class);
+
+        return describe(keys).equals(describe(existing.get("key", Document.class)))
+                && unique == existing.getBoolean("unique", false)
+                && Objects.equals(expireAfterSeconds, existingExpiry == null ? null : existingExpiry.longValue());
+    }
+
+    /**
+     * The server may return key directions as a different number type (1 vs 1.0) and compound key order matters
+     */
+    private static List<String> describe(Document keys) {
+        List<String> description = new ArrayList<>();
+
+        for(Map.Entry<String, Object> key : keys.entrySet()) {
+            Object direction = key.getValue();
+            description.add(key.getKey() + ":" + (direction instanceof Number ? ((Number) direction).intValue() : direction));
+        }
+
+        return description;
+    }
+}
@@ -84,7 +84,7 @@ public class CategoryResource {
     @APIResponses(value = { @APIResponse(responseCode = "201", description = "Categories stored in database") })
     @Operation(summary = "Creates the category resources in the database.")
     public Response updateCategories(@Context UriInfo uriInfo, @PathParam("engagementUuid") String engagementUuid, @DefaultValue("Gaton Boucher") @QueryParam("authorName") String authorName, @DefaultValue("bot@bot.com") @QueryParam("authorEmail") String authorEmail, Set<String> categories) {
-        Optional<Engagement> engagement = engagementService.getEngagement(engagementUuid);
+        Optional<Engagement> engagement = engagementService.getEngagementForUpdate(engagementUuid);
         
         if(engagement.isPresent()) {
             Engagement e = engagement.get();
@@ -8,12 +8,20 @@ import javax.inject.Inject;
 import javax.validation.Valid;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Link;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
 
 import com.redhat.labs.lodestar.engagements.model.EngagementState;
+import com.redhat.labs.lodestar.engagements.utils.NdJsonStreamer;
 import com.redhat.labs.lodestar.engagements.utils.PageFilter;
 import org.eclipse.microprofile.openapi.annotations.Operation;
 import org.eclipse.microprofile.openapi.annotations.responses.APIResponse;
@@ -22,6 +30,7 @@ import org.eclipse.microprofile.openapi.annotations.tags.Tag;
 
 import com.redhat.labs.lodestar.engagements.exception.ErrorMessage;
 import com.redhat.labs.lodestar.engagements.model.Engagement;
+import com.redhat.labs.lodestar.engagements.service.ChangeFeed;
 import com.redhat.labs.lodestar.engagements.service.EngagementService;
 
 @RequestScoped
@@ -36,33 +45,86 @@ public class EngagementResource {
 
     @Inject
     EngagementService engagementService;
+
+    @Inject
+    NdJsonStreamer ndJsonStreamer;
+
+    @Inject
+    ChangeFeed changeFeed;
     
     @GET
-    public Response getEngagements(@BeanParam PageFilter pagingFilter, @QueryParam("region") Set<String> region,
+    public Response getEngagements(@Context UriInfo uriInfo, @Context Request request, @BeanParam PageFilter pagingFilter, @QueryParam("region") Set<String> region,
                @QueryParam("types") Set<String> types, @QueryParam("inStates") Set<EngagementState> states,
-               @QueryParam("q") String search, @QueryParam("category") String category) {
+               @QueryParam("q") String search, @QueryParam("category") String category, @QueryParam("stream") boolean stream) {
 
-        List<Engagement> engagements;
-        long total = 0;
-        if(search == null && category == null && region.isEmpty() && types.isEmpty() && states.isEmpty()) {
-            engagements = engagementService.getEngagements();
-            total = engagements.size();
-        } else {
-            engagements = engagementService.findEngagements(pagingFilter, search, category, region, types, states);
-            total = engagementService.countEngagements(search, category, region, types, states);
+        if(stream) {
+            return streamEngagements(pagingFilter, region, types, states, search, category);
+        }
+
+        EntityTag tag = engagementService.getEngagementsTag();
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+        if(notModified != null) {
+            return notModified.build();
         }
-        return Response.ok(engagements).header(TOTAL_HEADER, total).build(); //no paging yet
+
+        List<Engagement> engagements = engagementService.findEngagements(pagingFilter, search, category, region, types, states);
+        long total = engagementService.countEngagements(search, category, region, types, states);
+
+        Response.ResponseBuilder builder = Response.ok(engagements).tag(tag).header(TOTAL_HEADER, total);
+
+        Optional<String> next = engagementService.getNextPageToken(pagingFilter, engagements);
+        if(next.isPresent()) {
+            UriBuilder nextPage = uriInfo.getRequestUriBuilder().replaceQueryParam("page").replaceQueryParam("after", next.get());
+            builder.links(Link.fromUriBuilder(nextPage).rel("next").build())
+                    .header(ACCESS_CONTROL_EXPOSE_HEADER, String.join(",", TOTAL_HEADER, HttpHeaders.LINK));
+        }
+
+        return builder.build();
+    }
+
+    @GET
+    @Produces(NdJsonStreamer.APPLICATION_NDJSON)
+    @Operation(summary = "Streams every matching engagement, one json document per line. Paging is not applied.")
+    public Response streamEngagements(@BeanParam PageFilter pagingFilter, @QueryParam("region") Set<String> region,
+               @QueryParam("types") Set<String> types, @QueryParam("inStates") Set<EngagementState> states,
+               @QueryParam("q") String search, @QueryParam("category") String category) {
+
+        StreamingOutput output = ndJsonStreamer.stream(engagementService.streamEngagements(pagingFilter, search, category, region, types, states));
+        return Response.ok(output, NdJsonStreamer.APPLICATION_NDJSON).build();
+    }
+
+    @GET
+    @Path("changes")
+    @Operation(summary = "The uuids of engagements changed after the since version. Reset means re-read everything.")
+    public Response getChanges(@DefaultValue("0") @QueryParam("since") long since) {
+        return Response.ok(engagementService.getChangesSince(since)).build();
+    }
+
+    @GET
+    @Path("changes")
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    @Operation(summary = "Pushes a change event (uuid) or reset event for each change. Event ids are change versions.")
+    public void subscribeToChanges(@Context Sse sse, @Context SseEventSink sink, @HeaderParam(HttpHeaders.LAST_EVENT_ID_HEADER) Long lastEventId,
+               @QueryParam("since") Long since) {
+        changeFeed.subscribe(sse, sink, lastEventId == null ? since : lastEventId);
     }
 
     @GET
     @Path("inStates")
-    public Response getEngagements(@QueryParam("inStates") Set<EngagementState> states) {
+    public Response getEngagements(@Context Request request, @QueryParam("inStates") Set<EngagementState> states) {
         if(states.isEmpty()) {
             return Response.status(Response.Status.BAD_REQUEST).entity(new ErrorMessage("State list is empty")).build();
         }
+
+        EntityTag tag = engagementService.getEngagementsTag();
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+        if(notModified != null) {
+            return notModified.build();
+        }
+
         List<Engagement> engagements = engagementService.findEngagements(new PageFilter(), null, null, Collections.emptySet(), Collections.emptySet(), states);
         long total = engagementService.countEngagements(null, null, Collections.emptySet(), Collections.emptySet(), states);
-        return Response.ok(engagements).header(TOTAL_HEADER, total).build();
+        return Response.ok(engagements).tag(tag).header(TOTAL_HEADER, total).build();
     }
 
     @GET
@@ -75,19 +137,34 @@ public class EngagementResource {
     @GET
     @Path("category/{category}")
     @Operation(summary = "Gets a list of engagements that have use the category input.")
-    public Response getEngagementWithCategory(@PathParam("category") String category, @BeanParam PageFilter pagingFilter,
+    public Response getEngagementWithCategory(@Context Request request, @PathParam("category") String category, @BeanParam PageFilter pagingFilter,
               @QueryParam("region") Set<String> region, @QueryParam("types") Set<String> types, @QueryParam("inStates") Set<EngagementState> states) {
+        EntityTag tag = engagementService.getEngagementsTag();
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+        if(notModified != null) {
+            return notModified.build();
+        }
+
         List<Engagement> engagements = engagementService.getEngagementsWithCategory(category, pagingFilter, region, types, states);
-        return Response.ok(engagements).header(TOTAL_HEADER, engagements.size()).build();
+        return Response.ok(engagements).tag(tag).header(TOTAL_HEADER, engagements.size()).build();
     }
     
     @GET
     @Path("{uuid}")
-    public Response getEngagement(@PathParam("uuid") String uuid) {
+    public Response getEngagement(@Context Request request, @PathParam("uuid") String uuid) {
+        Optional<EntityTag> tag = engagementService.getEngagementTag(uuid);
+
+        if(tag.isPresent()) {
+            Response.ResponseBuilder notModified = request.evaluatePreconditions(tag.get());
+            if(notModified != null) {
+                return notModified.build();
+            }
+        }
+
         Optional<Engagement> engagement = engagementService.getEngagement(uuid);
         
         if(engagement.isPresent()) {
-            return Response.ok(engagement).build();
+            return Response.ok(engagement).tag(tag.orElse(null)).build();
         }
         
         return Response.status(404).entity(new ErrorMessage("No engagement found for uuid %s", uuid)).build();
@@ -124,7 +201,7 @@ public class EngagementResource {
         UriBuilder builder = uriInfo.getAbsolutePathBuilder();
         builder.path(engagement.getUuid());
 
-        Optional<Engagement> persisted = engagementService.getEngagement(engagement.getUuid());
+        Optional<Engagement> persisted = engagementService.getEngagementForUpdate(engagement.getUuid());
         if(persisted.isPresent()) {
             return Response.created(builder.build()).entity(persisted).build();
         }
@@ -153,7 +230,7 @@ public class EngagementResource {
     @Path("{uuid}/launch")
     public Response launch(@PathParam("uuid") String uuid, @QueryParam("author") String author, @QueryParam("authorEmail") String authorEmail) {
         engagementService.launch(uuid, author, authorEmail);
-        return Response.ok(engagementService.getEngagement(uuid)).build();
+        return Response.ok(engagementService.getEngagementForUpdate(uuid)).build();
     }
 
     @GET
@@ -215,6 +292,14 @@ public class EngagementResource {
         return Response.ok().header(TOTAL_HEADER, newCount).build();
     }
 
+    @PUT
+    @Path("refresh/changes")
+    @Operation(summary = "Reloads engagements and categories for projects with gitlab activity since the last sync.")
+    public Response refreshChanges() {
+        long count = engagementService.syncChanges();
+        return Response.ok().header(TOTAL_HEADER, count).build();
+    }
+
     @PUT
     @Path("refresh/state")
     public Response updateStatesInGitlab() {
@@ -259,11 +344,14 @@ public class EngagementResource {
 
     @HEAD
     @Path("{uuid}")
-    public Response getLastUpdate(@PathParam("uuid") String uuid) {
+    public Response getLastUpdate(@Context Request request, @PathParam("uuid") String uuid) {
+        Optional<EntityTag> tag = engagementService.getEngagementTag(uuid);
         Optional<Engagement> engagement = engagementService.getEngagement(uuid);
-        if(engagement.isPresent()) {
-            return Response.ok().header(LAST_UPDATE_HEADER, engagement.get().getLastUpdate())
-                .header(ACCESS_CONTROL_EXPOSE_HEADER, LAST_UPDATE_HEADER).build();
+        if(tag.isPresent() && engagement.isPresent()) {
+            Response.ResponseBuilder builder = request.evaluatePreconditions(tag.get());
+            builder = builder == null ? Response.ok() : builder;
+            return builder.tag(tag.get()).header(LAST_UPDATE_HEADER, engagement.get().getLastUpdate())
+                .header(ACCESS_CONTROL_EXPOSE_HEADER, String.join(",", LAST_UPDATE_HEADER, HttpHeaders.ETAG)).build();
         }
 
         return Response.status(Response.Status.NOT_FOUND).build();
@@ -0,0 +1,101 @@
+package com.redhat.labs.lodestar.engagements.resource;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+
+import javax.enterprise.context.RequestScoped;
+import javax.inject.Inject;
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.openapi.annotations.Operation;
+import org.eclipse.microprofile.openapi.annotations.responses.APIResponse;
+import org.eclipse.microprofile.openapi.annotations.responses.APIResponses;
+import org.eclipse.microprofile.openapi.annotations.tags.Tag;
+
+import com.redhat.labs.lodestar.engagements.exception.ErrorMessage;
+import com.redhat.labs.lodestar.engagements.service.GitlabService;
+
+@RequestScoped
+@Path("/api/v2/engagements/gitlab-hooks")
+@Produces(MediaType.APPLICATION_JSON)
+@Consumes(MediaType.APPLICATION_JSON)
+@Tag(name = "Webhooks")
+public class GitlabHookResource {
+
+    @Inject
+    GitlabService gitlabService;
+
+    @ConfigProperty(name = "gitlab.webhook.token")
+    Optional<String> webhookToken;
+
+    @POST
+    @Path("push")
+    @APIResponses(value = { @APIResponse(responseCode = "401", description = "Token does not match or no token is configured"),
+            @APIResponse(responseCode = "400", description = "Not a push event"),
+            @APIResponse(responseCode = "200", description = "Push accepted") })
+    @Operation(summary = "Gitlab push webhook. Queues a re-read of the cached legacy engagement.json when a push changes it.")
+    public Response push(@HeaderParam("X-Gitlab-Token") String token, JsonObject push) {
+        if(!isTokenValid(token)) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+
+        JsonValue projectId = push == null ? null : push.get("project_id");
+        if(!(projectId instanceof JsonNumber) || !((JsonNumber) projectId).isIntegral()) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(new ErrorMessage("project_id must be a number")).build();
+        }
+
+        Set<String> paths = new HashSet<>();
+        JsonArray commits;
+        try {
+            commits = push.getJsonArray("commits");
+            if(commits != null) {
+                commits.getValuesAs(JsonObject.class).forEach(c -> {
+                    addPaths(c.getJsonArray("added"), paths);
+                    addPaths(c.getJsonArray("modified"), paths);
+                    addPaths(c.getJsonArray("removed"), paths);
+                });
+            }
+        } catch (ClassCastException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(new ErrorMessage("Malformed commit list")).build();
+        }
+
+        //gitlab only lists the first 20 commits of a push
+        boolean truncated = commits == null || push.getInt("total_commits_count", 0) > commits.size();
+        String ref = push.getString("ref", null);
+
+        if(gitlabService.isLegacyFileChange(ref, truncated ? null : paths)) {
+            gitlabService.queueRefreshLegacy(((JsonNumber) projectId).intValue(), push.getString("after", null));
+        }
+
+        return Response.ok().build();
+    }
+
+    /**
+     * Pushes are refused until a token is configured
+     */
+    private boolean isTokenValid(String token) {
+        return webhookToken.isPresent() && token != null
+                && MessageDigest.isEqual(webhookToken.get().getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void addPaths(JsonArray files, Set<String> paths) {
+        if(files != null) {
+            files.getValuesAs(JsonString.class).forEach(f -> paths.add(f.getString()));
+        }
+    }
+}
@@ -2,17 +2,38 @@ package com.redhat.labs.lodestar.engagements.rest.client;
 
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.logging.Level;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import javax.ws.rs.WebApplicationException;
 
 import com.redhat.labs.lodestar.engagements.model.EngagementState;
 import com.redhat.labs.lodestar.engagements.service.*;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import io.smallrye.mutiny.tuples.Tuple2;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+import org.gitlab4j.api.Constants;
 import org.gitlab4j.api.GitLabApi;
 import org.gitlab4j.api.GitLabApiException;
+import org.gitlab4j.api.Pager;
 import org.gitlab4j.api.models.Commit;
 import org.gitlab4j.api.models.CommitAction;
 import org.gitlab4j.api.models.CommitAction.Action;
@@ -23,17 +44,25 @@ import org.gitlab4j.api.models.GroupProjectsFilter;
 import org.gitlab4j.api.models.Project;
 import org.gitlab4j.api.models.ProjectHook;
 import org.gitlab4j.api.models.RepositoryFile;
+import org.gitlab4j.api.models.TreeItem;
 import org.gitlab4j.api.models.Visibility;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.client.ClientProperties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.redhat.labs.lodestar.engagements.utils.JsonMarshaller;
+import com.redhat.labs.lodestar.engagements.utils.SampledLogFilter;
 import com.redhat.labs.lodestar.engagements.exception.EngagementException;
 import com.redhat.labs.lodestar.engagements.exception.EngagementGitlabException;
 import com.redhat.labs.lodestar.engagements.model.Category;
 import com.redhat.labs.lodestar.engagements.model.Engagement;
+import com.redhat.labs.lodestar.engagements.model.EngagementFiles;
 import com.redhat.labs.lodestar.engagements.model.HookConfig;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.httpcomponents.PoolingHttpClientConnectionManagerMetricsBinder;
+
 @ApplicationScoped
 public class GitlabApiClient {
     private static final Logger LOGGER = LoggerFactory.getLogger(GitlabApiClient.class);
@@ -45,6 +74,13 @@ public class GitlabApiClient {
     private static final String DEPLOYMENT_KEY_PREFIX = "LodeStar";
     private static final String DEPLOYMENT_KEY_POSTFIX = "DK";
     private static final String ENGAGEMENT_JSON = "engagement.json";
+    private static final int PROJECTS_PER_PAGE = 100;
+    private static final String WIRE_LOGGER = "org.gitlab4j.api.wire";
+    private static final String PROJECT_GID = "gid://gitlab/Project/";
+    private static final String GRAPHQL_FILES = "query($ids: [ID!], $first: Int, $paths: [String!]!, $ref: String) { "
+            + "projects(ids: $ids, first: $first) { nodes { id repository { blobs(paths: $paths, ref: $ref) { nodes { path oid rawBlob } } } } } }";
+    private static final String GRAPHQL_BLOB_IDS = "query($ids: [ID!], $first: Int, $paths: [String!]!, $ref: String) { "
+            + "projects(ids: $ids, first: $first) { nodes { id repository { blobs(paths: $paths, ref: $ref) { nodes { path oid } } } } } }";
     
     @ConfigProperty(name = "file.engagement")
     String engagementFile;
@@ -84,6 +120,42 @@ public class GitlabApiClient {
     
     @ConfigProperty(name = "seed.file.list")
     List<String> seedFileList;
+
+    @ConfigProperty(name = "gitlab.refresh.concurrency")
+    int refreshConcurrency;
+
+    @ConfigProperty(name = "gitlab.graphql.enabled")
+    boolean graphqlEnabled;
+
+    @ConfigProperty(name = "gitlab.graphql.batch.size")
+    int graphqlBatchSize;
+
+    @ConfigProperty(name = "gitlab.http.pool.size")
+    int poolSize;
+
+    @ConfigProperty(name = "gitlab.http.connect.timeout")
+    Duration connectTimeout;
+
+    @ConfigProperty(name = "gitlab.http.read.timeout")
+    Duration readTimeout;
+
+    @ConfigProperty(name = "gitlab.http.keep.alive")
+    Duration keepAlive;
+
+    @ConfigProperty(name = "gitlab.log.sample.rate")
+    int logSampleRate;
+
+    @ConfigProperty(name = "gitlab.log.max.entity.size")
+    int logMaxEntitySize;
+
+    /**
+     * Where gitlab reaches this service's push hook. With the token it is added to every engagement project's hooks
+     */
+    @ConfigProperty(name = "gitlab.webhook.url")
+    Optional<String> pushHookUrl;
+
+    @ConfigProperty(name = "gitlab.webhook.token")
+    Optional<String> pushHookToken;
     
     @Inject
     JsonMarshaller json;
@@ -92,12 +164,27 @@ public class GitlabApiClient {
     ConfigService configService;
     
     @Inject
-    CategoryService categoryService;
+    GitlabRateLimiter rateLimiter;
+
+    @Inject
+    MeterRegistry registry;
+
+    @Inject
+    @RestClient
+    GitlabGraphqlClient graphqlClient;
     
     String engagementPathPrefix;
     
     GitLabApi gitlabApi;
+
+    PoolingHttpClientConnectionManager connectionManager;
     
+    /**
+     * Projects in the current (or last) refresh and how many of them have been read
+     */
+    private final AtomicInteger refreshTotal = new AtomicInteger();
+    private final AtomicInteger refreshCompleted = new AtomicInteger();
+
     @PostConstruct
     void setupGitlabClient() {
         //Config is adding a line feed char
@@ -106,12 +193,19 @@ public class GitlabApiClient {
 
         LOGGER.info("Base url {}", gitUrl);
 
-        gitlabApi = new GitLabApi(gitUrl, pat);
-        gitlabApi.enableRequestResponseLogging();
+        gitlabApi = new GitLabApi(gitUrl, pat, clientConfig());
+        enableSampledLogging();
+
+        registry.gauge("gitlab.refresh.projects.total", refreshTotal);
+        registry.gauge("gitlab.refresh.projects.completed", refreshCompleted);
+
+        if(pushHookUrl.isEmpty() || pushHookToken.isEmpty()) {
+            LOGGER.warn("Push hook is not registered. Set gitlab.webhook.url and gitlab.webhook.token to keep the legacy cache current");
+        }
         
         Group headGroup;
         try {
-            headGroup = gitlabApi.getGroupApi().getGroup(engagementRepositoryId);
+            headGroup = rateLimiter.call(() -> gitlabApi.getGroupApi().getGroup(engagementRepositoryId));
 
             if(headGroup == null) {
                 LOGGER.warn("Could not find the path for repo {}", engagementRepositoryId);
@@ -125,11 +219,55 @@ public class GitlabApiClient {
         
     }
     
+    /**
+     * gitlab4j only switches to the pooled apache connector when a proxy is configured. A null proxy uri sets no
+     * proxy but still selects the connector
+     */
+    private Map<String, Object> clientConfig() {
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(poolSize);
+        connectionManager.setDefaultMaxPerRoute(poolSize);
+        new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, "gitlab").bindTo(registry);
+
+        ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+            long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAlive.toMillis()) : keepAlive.toMillis();
+        };
+
+        Map<String, Object> config = new HashMap<>();
+        config.put(ClientProperties.PROXY_URI, null);
+        config.put(ApacheClientProperties.CONNECTION_MANAGER, connectionManager);
+        config.put(ApacheClientProperties.KEEPALIVE_STRATEGY, keepAliveStrategy);
+        config.put(ClientProperties.CONNECT_TIMEOUT, (int) connectTimeout.toMillis());
+        config.put(ClientProperties.READ_TIMEOUT, (int) readTimeout.toMillis());
+        return config;
+    }
+
+    /**
+     * Logs 1 in gitlab.log.sample.rate requests with bodies cut at gitlab.log.max.entity.size. The wire logger
+     * writes through an async handler (see application.properties). 0 turns logging off
+     */
+    private void enableSampledLogging() {
+        if(logSampleRate < 1) {
+            return;
+        }
+
+        java.util.logging.Logger wireLogger = java.util.logging.Logger.getLogger(WIRE_LOGGER);
+        wireLogger.setFilter(new SampledLogFilter(logSampleRate));
+        gitlabApi.enableRequestResponseLogging(wireLogger, Level.INFO, logMaxEntitySize);
+    }
+
+    @PreDestroy
+    void closeGitlabClient() {
+        gitlabApi.close();
+        connectionManager.close();
+    }
+    
     public Optional<Group> getGroup(String groupId) {
         LOGGER.debug("Getting group by id {}", groupId);
         
         try {
-            return Optional.ofNullable(gitlabApi.getGroupApi().getGroup(groupId));
+            return Optional.ofNullable(rateLimiter.call(() -> gitlabApi.getGroupApi().getGroup(groupId)));
         } catch (GitLabApiException e) {
             if(e.getHttpStatus() == 404) {
                 LOGGER.debug("No group found for {}", groupId);
@@ -155,7 +293,7 @@ public class GitlabApiClient {
     
     public List<Group> getSubGroups(String groupId) {
         try {
-            return gitlabApi.getGroupApi().getSubGroups(groupId);
+            return rateLimiter.call(() -> gitlabApi.getGroupApi().getSubGroups(groupId));
         } catch (GitLabApiException e) {
             throw new EngagementGitlabException(e.getHttpStatus(), e.getReason());
         }
@@ -164,7 +302,7 @@ public class GitlabApiClient {
 
     public Optional<Project> getProject(int projectId) {
         try {
-            return Optional.ofNullable(gitlabApi.getProjectApi().getProject(projectId));
+            return Optional.ofNullable(rateLimiter.call(() -> gitlabApi.getProjectApi().getProject(projectId)));
         } catch (GitLabApiException e) {
             if(e.getHttpStatus() == 404) {
                 return Optional.empty();
@@ -177,9 +315,11 @@ public class GitlabApiClient {
     //Optional?
     public Optional<Engagement> getEngagement(Integer projectId) {
         try {
-            RepositoryFile file = gitlabApi.getRepositoryFileApi().getFile(projectId, engagementFile, branch);
+            RepositoryFile file = rateLimiter.call(() -> gitlabApi.getRepositoryFileApi().getFile(projectId, engagementFile, branch));
             String content = new String(file.getDecodedContentAsBytes(), StandardCharsets.UTF_8);
-            return Optional.of(json.fromJson(content));
+            Engagement engagement = json.fromJson(content);
+            engagement.setEngagementSha(file.getBlobId());
+            return Optional.of(engagement);
         } catch (GitLabApiException e) {
             if(e.getHttpStatus() == 404) {
                 LOGGER.debug("Could find not file {} for project {}", engagementFile, projectId);
@@ -189,42 +329,305 @@ public class GitlabApiClient {
         }
     }
 
-    public String getLegacyEngagement(Integer projectId) {
+    /**
+     * @param projectId the project to read from
+     * @return the legacy engagement.json with its content decoded and its last commit id. Empty if not found
+     */
+    public Optional<RepositoryFile> getLegacyEngagement(Integer projectId) {
         try {
-            RepositoryFile file = gitlabApi.getRepositoryFileApi().getFile(projectId, ENGAGEMENT_JSON, branch);
-            return new String(file.getDecodedContentAsBytes(), StandardCharsets.UTF_8);
+            RepositoryFile file = rateLimiter.call(() -> gitlabApi.getRepositoryFileApi().getFile(projectId, ENGAGEMENT_JSON, branch));
+            file.setContent(new String(file.getDecodedContentAsBytes(), StandardCharsets.UTF_8));
+            file.setEncoding(null);
+            return Optional.of(file);
         } catch (GitLabApiException e) {
             if(e.getHttpStatus() == 404) {
                 LOGGER.debug("Could find not legacy file {} for project {}", ENGAGEMENT_JSON, projectId);
-                return null;
+                return Optional.empty();
             }
             throw new EngagementGitlabException(e.getHttpStatus(), e.getReason(), "Legacy Engagement File Not Retrieved " + projectId);
         }
     }
 
+    /**
+     * Same result (and order) as reading each project's engagement file one at a time. Projects without an
+     * engagement file are skipped.
+     * @param uuids limit to these engagements. Empty for all
+     * @return the engagements found in gitlab
+     */
     public List<Engagement> getEngagements(Set<String> uuids) {
-        GroupProjectsFilter filter = new GroupProjectsFilter()
-                .withIncludeSubGroups(true);
         List<Engagement> allEngagements = new ArrayList<>();
+        getIndexedFiles(uuids, false, Collections.emptyMap()).forEach(f -> allEngagements.add(f.getEngagement()));
+        return allEngagements;
+    }
+
+    /**
+     * Reads the engagement and category files of each project in one pass. Same order as
+     * {@link #getEngagements(Set)}. Projects without an engagement file are skipped. The blob ids of a project's
+     * files are listed first. If they match the ids on the stored engagement the stored copy is returned and the
+     * files are not downloaded.
+     * @param uuids limit to these engagements. Empty for all
+     * @param stored engagements (with their categories) as last read, by project id
+     * @return the engagements found in gitlab with their categories
+     */
+    public List<EngagementFiles> getEngagementFiles(Set<String> uuids, Map<Integer, EngagementFiles> stored) {
+        List<EngagementFiles> files = getIndexedFiles(uuids, true, stored);
+        LOGGER.debug("Reused {} of {} stored engagements", files.stream().filter(f -> stored.get(f.getEngagement().getProjectId()) == f).count(), files.size());
+        return files;
+    }
+
+    private List<EngagementFiles> getIndexedFiles(Set<String> uuids, boolean withCategories, Map<Integer, EngagementFiles> stored) {
+        List<Tuple2<Integer, EngagementFiles>> indexed = streamIndexedEngagements(uuids, withCategories, stored).collect().asList().await().indefinitely();
+        indexed.sort(Comparator.comparing(Tuple2::getItem1));
+
+        List<EngagementFiles> allFiles = new ArrayList<>();
+        indexed.forEach(t -> allFiles.add(t.getItem2()));
+        return allFiles;
+    }
+
+    /**
+     * Emits engagement files as they are retrieved, paired with each project's index. At most
+     * gitlab.refresh.concurrency file requests are in flight at a time. Items arrive in completion order, not
+     * project order. With gitlab.graphql.enabled each request reads the files of gitlab.graphql.batch.size projects.
+     * Progress is published as the gitlab.refresh.projects gauges
+     */
+    private Multi<Tuple2<Integer, EngagementFiles>> streamIndexedEngagements(Set<String> uuids, boolean withCategories, Map<Integer, EngagementFiles> stored) {
+        List<Project> projects = getEngagementProjects(uuids);
+        int total = projects.size();
+        refreshCompleted.set(0);
+        refreshTotal.set(total);
+
+        GitlabRateLimiter.Priority priority = rateLimiter.getPriority();
+
+        LOGGER.debug("Fetching {} engagement files. Concurrency {}", total, refreshConcurrency);
+
+        if(graphqlEnabled) {
+            int batches = (total + graphqlBatchSize - 1) / graphqlBatchSize;
+
+            return Multi.createFrom().range(0, batches)
+                    .onItem().transformToUni(b -> Uni.createFrom().item(() -> rateLimiter.withPriority(priority,
+                                    () -> getEngagementBatch(projects, b * graphqlBatchSize, Math.min(total, (b + 1) * graphqlBatchSize), withCategories, stored)))
+                            .runSubscriptionOn(Infrastructure.getDefaultWorkerPool()))
+                    .merge(refreshConcurrency)
+                    .onItem().transformToMultiAndConcatenate(batch -> Multi.createFrom().iterable(batch))
+                    .onItem().invoke(() -> logProgress(refreshCompleted.incrementAndGet(), total))
+                    .filter(t -> t.getItem2().isPresent())
+                    .map(t -> Tuple2.of(t.getItem1(), t.getItem2().get()));
+        }
+
+        return Multi.createFrom().range(0, total)
+                .onItem().transformToUni(i -> Uni.createFrom().item(() -> Tuple2.of(i, rateLimiter.withPriority(priority,
+                                () -> getEngagementFiles(projects.get(i).getId(), withCategories, stored.get(projects.get(i).getId())))))
+                        .runSubscriptionOn(Infrastructure.getDefaultWorkerPool()))
+                .merge(refreshConcurrency)
+                .onItem().invoke(() -> logProgress(refreshCompleted.incrementAndGet(), total))
+                .filter(t -> t.getItem2().isPresent())
+                .map(t -> Tuple2.of(t.getItem1(), t.getItem2().get()));
+    }
+
+    /**
+     * Engagement files of the projects from (inclusive) to (exclusive), paired with each project's index. When
+     * there are stored engagements, one request lists blob ids and a second downloads only the changed projects.
+     * Projects the graphql requests did not answer for are read over rest
+     */
+    private List<Tuple2<Integer, Optional<EngagementFiles>>> getEngagementBatch(List<Project> projects, int from, int to, boolean withCategories,
+            Map<Integer, EngagementFiles> stored) {
+        List<String> paths = withCategories ? List.of(engagementFile, categoryFile) : List.of(engagementFile);
+        List<Project> batchProjects = projects.subList(from, to);
+
+        Map<Integer, Map<String, RepositoryFile>> shas = Collections.emptyMap();
+        List<Project> toDownload = batchProjects;
+        if(batchProjects.stream().anyMatch(p -> stored.containsKey(p.getId()))) {
+            Map<Integer, Map<String, RepositoryFile>> listed = getFiles(batchProjects, paths, false);
+            shas = listed;
+            toDownload = batchProjects.stream().filter(p -> !listed.containsKey(p.getId()) ||
+                    (listed.get(p.getId()).containsKey(engagementFile) && !isUnchanged(stored.get(p.getId()), listed.get(p.getId()))))
+                    .collect(Collectors.toList());
+        }
+        Map<Integer, Map<String, RepositoryFile>> files = toDownload.isEmpty() ? Collections.emptyMap() : getFiles(toDownload, paths, true);
+
+        List<Tuple2<Integer, Optional<EngagementFiles>>> batch = new ArrayList<>();
+        for(int i = from; i < to; i++) {
+            Integer projectId = projects.get(i).getId();
+            Map<String, RepositoryFile> projectShas = shas.get(projectId);
+            Map<String, RepositoryFile> projectFiles = files.get(projectId);
+
+            if(projectShas != null && !projectShas.containsKey(engagementFile)) { //no engagement file
+                batch.add(Tuple2.of(i, Optional.empty()));
+            } else if(projectShas != null && isUnchanged(stored.get(projectId), projectShas)) {
+                batch.add(Tuple2.of(i, Optional.of(stored.get(projectId))));
+            } else if(projectFiles == null) {
+                batch.add(Tuple2.of(i, getEngagementFiles(projectId, withCategories, stored.get(projectId))));
+            } else {
+                batch.add(Tuple2.of(i, Optional.ofNullable(projectFiles.get(engagementFile)).map(file -> toEngagementFiles(projectId, file, projectFiles.get(categoryFile)))));
+            }
+        }
+        return batch;
+    }
+
+    private EngagementFiles toEngagementFiles(Integer projectId, RepositoryFile engagement, RepositoryFile categories) {
+        Engagement e = json.fromJson(engagement.getContent());
+        e.setEngagementSha(engagement.getBlobId());
+
+        if(categories == null) {
+            return new EngagementFiles(e, null);
+        }
+
+        e.setCategorySha(categories.getBlobId());
+        return new EngagementFiles(e, toCategories(projectId, categories.getContent()));
+    }
+
+    /**
+     * Rest read of one project. If there is a stored copy, the project's tree is listed first and the stored copy
+     * is returned when the blob ids match
+     */
+    private Optional<EngagementFiles> getEngagementFiles(Integer projectId, boolean withCategories, EngagementFiles stored) {
+        Map<String, RepositoryFile> shas = stored == null ? Collections.emptyMap() : getShas(projectId);
+        if(isUnchanged(stored, shas)) {
+            return Optional.of(stored);
+        }
+
+        Optional<Engagement> engagement = getEngagement(projectId);
+        if(engagement.isEmpty() || !withCategories) {
+            return engagement.map(e -> new EngagementFiles(e, null));
+        }
+
+        Optional<RepositoryFile> categories = getCategoryFile(projectId);
+        categories.ifPresent(file -> engagement.get().setCategorySha(file.getBlobId()));
+        return Optional.of(new EngagementFiles(engagement.get(), categories.map(file -> toCategories(projectId, file)).orElse(null)));
+    }
+
+    /**
+     * True if the stored engagement was read from the listed engagement and category blobs. A project without a
+     * category file matches a stored engagement without a category blob id
+     */
+    private boolean isUnchanged(EngagementFiles stored, Map<String, RepositoryFile> shas) {
+        if(stored == null || stored.getEngagement().getEngagementSha() == null || !shas.containsKey(engagementFile)) {
+            return false;
+        }
+
+        RepositoryFile categories = shas.get(categoryFile);
+        return stored.getEngagement().getEngagementSha().equals(shas.get(engagementFile).getBlobId()) &&
+                Objects.equals(stored.getEngagement().getCategorySha(), categories == null ? null : categories.getBlobId());
+    }
+
+    /**
+     * Blob ids of the files in the engagement file's directory. Empty if the tree could not be read
+     */
+    private Map<String, RepositoryFile> getShas(Integer projectId) {
+        int slash = engagementFile.lastIndexOf('/');
+        String directory = slash < 0 ? null : engagementFile.substring(0, slash);
+
+        Map<String, RepositoryFile> shas = new HashMap<>();
         try {
+            List<TreeItem> tree = rateLimiter.call(() -> gitlabApi.getRepositoryApi().getTree(projectId, directory, branch));
+            tree.stream().filter(t -> t.getType() == TreeItem.Type.BLOB).forEach(t -> {
+                RepositoryFile file = new RepositoryFile();
+                file.setFilePath(t.getPath());
+                file.setBlobId(t.getId());
+                shas.put(t.getPath(), file);
+            });
+        } catch (GitLabApiException e) {
+            LOGGER.debug("Could not list tree for project {}. Status {}", projectId, e.getHttpStatus());
+            return Collections.emptyMap();
+        }
+        return shas;
+    }
 
-            List<Project> allProjects = gitlabApi.getGroupApi().getProjects(engagementRepositoryId, filter);
+    /**
+     * Reads files from many projects in one graphql request. A project that is in the result but has none of the
+     * files maps to an empty map. Any error returns an empty result so the caller falls back to rest
+     * @param projects read from these projects
+     * @param paths the file paths to read
+     * @param withContent false to list blob ids only
+     * @return files (path, blob id and content) by path, by project id
+     */
+    Map<Integer, Map<String, RepositoryFile>> getFiles(List<Project> projects, List<String> paths, boolean withContent) {
+        JsonObject variables = Json.createObjectBuilder()
+                .add("ids", Json.createArrayBuilder(projects.stream().map(p -> PROJECT_GID + p.getId()).collect(Collectors.toList())))
+                .add("first", projects.size())
+                .add("paths", Json.createArrayBuilder(paths))
+                .add("ref", branch)
+                .build();
+        JsonObject request = Json.createObjectBuilder().add("query", withContent ? GRAPHQL_FILES : GRAPHQL_BLOB_IDS)
+                .add("variables", variables).build();
 
+        Map<Integer, Map<String, RepositoryFile>> files = new HashMap<>();
+        try {
+            JsonObject response = rateLimiter.call(() -> queryGraphql(request));
 
-            allProjects.forEach(p -> {
-                if(uuids.isEmpty() || uuids.contains(getUuid(p))) {
-                    Optional<Engagement> e = getEngagement(p.getId());
-                    e.ifPresent(allEngagements::add);
+            if(response.containsKey("errors")) {
+                throw new EngagementGitlabException(200, "Graphql errors", response.get("errors").toString());
+            }
+
+            JsonArray nodes = response.getJsonObject("data").getJsonObject("projects").getJsonArray("nodes");
+            for(JsonObject node : nodes.getValuesAs(JsonObject.class)) {
+                Map<String, RepositoryFile> projectFiles = new HashMap<>();
+                files.put(Integer.valueOf(node.getString("id").substring(PROJECT_GID.length())), projectFiles);
+
+                JsonValue repository = node.get("repository");
+                if(repository == null || repository.getValueType() != JsonValue.ValueType.OBJECT) {
+                    continue;
                 }
-            });
+                for(JsonObject blob : repository.asJsonObject().getJsonObject("blobs").getJsonArray("nodes").getValuesAs(JsonObject.class)) {
+                    RepositoryFile file = new RepositoryFile();
+                    file.setFilePath(blob.getString("path"));
+                    file.setBlobId(blob.getString("oid"));
+                    if(withContent) {
+                        file.setContent(blob.getString("rawBlob"));
+                    }
+                    projectFiles.put(file.getFilePath(), file);
+                }
+            }
+        } catch (GitLabApiException | RuntimeException e) {
+            LOGGER.warn("Graphql file read failed. Falling back to rest for {} projects. {}", projects.size(), e.getMessage());
+            registry.counter("gitlab.graphql.fallback").increment(projects.size());
+            return Collections.emptyMap();
+        }
+
+        int unanswered = projects.size() - files.size();
+        if(unanswered > 0) {
+            LOGGER.warn("Graphql file read did not return {} of {} projects. Falling back to rest for those", unanswered, projects.size());
+            registry.counter("gitlab.graphql.fallback").increment(unanswered);
+        }
 
+        return files;
+    }
 
+    private JsonObject queryGraphql(JsonObject request) throws GitLabApiException {
+        try {
+            return graphqlClient.query("Bearer " + pat, request);
+        } catch (WebApplicationException e) {
+            throw new GitLabApiException(e.getMessage(), e.getResponse().getStatus());
+        }
+    }
+
+    private List<Project> getEngagementProjects(Set<String> uuids) {
+        GroupProjectsFilter filter = new GroupProjectsFilter()
+                .withIncludeSubGroups(true);
+        try {
+            List<Project> allProjects = rateLimiter.call(() -> gitlabApi.getGroupApi().getProjects(engagementRepositoryId, filter));
             LOGGER.debug("projects size {}", allProjects.size());
+
+            if(uuids.isEmpty()) {
+                return allProjects;
+            }
+
+            List<Project> selected = new ArrayList<>();
+            allProjects.forEach(p -> {
+                if(uuids.contains(getUuid(p))) {
+                    selected.add(p);
+                }
+            });
+            return selected;
         } catch (GitLabApiException e) {
             throw new EngagementGitlabException(e.getHttpStatus(), e.getReason());
         }
+    }
 
-        return allEngagements;
+    private void logProgress(int completed, int total) {
+        if(completed == total || completed % 100 == 0) {
+            LOGGER.debug("Engagement files retrieved {}/{}", completed, total);
+        }
     }
 
     private String getUuid(Project project) {
@@ -239,31 +642,72 @@ public class GitlabApiClient {
         return project.getDescription().substring(chum);
     }
     
-    public long refreshCategories(List<Engagement> engagements) {
-        long categoryCount = 0;
-        
-        for(Engagement e : engagements) {
-            RepositoryFile file;
-            try {
-                file = gitlabApi.getRepositoryFileApi().getFile(e.getProjectId(), categoryFile, branch);
-                String content = new String(file.getDecodedContentAsBytes(), StandardCharsets.UTF_8);
-                List<Category> categories = json.fromJson(content, Category.class);
-                if(categories == null) {
-                    LOGGER.error("Category null {}", e.getUuid());
-                } else {
-                    categoryService.refresh(categories);
-                    categoryCount += categories.size();
-                }
-            } catch (GitLabApiException ex) {
-                if(ex.getHttpStatus() != 404) {
-                    throw new EngagementGitlabException(ex.getHttpStatus(), ex.getReason(), "Engagement File Not Retrieved " + e.getProjectId());
+    /**
+     * Projects under the engagement group with activity at or after the input time. Projects are listed most
+     * recently active first so paging stops at the first project that has not changed.
+     * @param since the last activity already synced
+     * @return projects that have changed, most recent first
+     */
+    public List<Project> getProjectsChangedSince(Instant since) {
+        GroupProjectsFilter filter = new GroupProjectsFilter()
+                .withIncludeSubGroups(true)
+                .withOrderBy(Constants.ProjectOrderBy.LAST_ACTIVITY_AT)
+                .withSortOder(Constants.SortOrder.DESC);
+
+        List<Project> changed = new ArrayList<>();
+        try {
+            Pager<Project> pager = rateLimiter.call(() -> gitlabApi.getGroupApi().getProjects(engagementRepositoryId, filter, PROJECTS_PER_PAGE));
+
+            while(pager.hasNext()) {
+                for(Project p : rateLimiter.call(pager::next)) {
+                    if(p.getLastActivityAt() != null && p.getLastActivityAt().toInstant().isBefore(since)) {
+                        LOGGER.debug("{} projects changed since {}", changed.size(), since);
+                        return changed;
+                    }
+                    changed.add(p);
                 }
-                LOGGER.debug("Could find not file {} for project {}", categoryFile, e.getProjectId());
-                    
             }
+        } catch (GitLabApiException e) {
+            throw new EngagementGitlabException(e.getHttpStatus(), e.getReason());
         }
-        
-        return categoryCount;
+
+        LOGGER.debug("{} projects changed since {}", changed.size(), since);
+        return changed;
+    }
+
+    public Optional<List<Category>> getCategories(Integer projectId) {
+        return getCategoryFile(projectId).map(file -> toCategories(projectId, file));
+    }
+
+    private List<Category> toCategories(Integer projectId, RepositoryFile file) {
+        return toCategories(projectId, new String(file.getDecodedContentAsBytes(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the category file with its blob id. Empty if the project has none
+     */
+    private Optional<RepositoryFile> getCategoryFile(Integer projectId) {
+        try {
+            return Optional.of(rateLimiter.call(() -> gitlabApi.getRepositoryFileApi().getFile(projectId, categoryFile, branch)));
+        } catch (GitLabApiException e) {
+            if(e.getHttpStatus() != 404) {
+                throw new EngagementGitlabException(e.getHttpStatus(), e.getReason(), "Engagement File Not Retrieved " + projectId);
+            }
+            LOGGER.debug("Could find not file {} for project {}", categoryFile, projectId);
+            return Optional.empty();
+        }
+    }
+
+    private List<Category> toCategories(Integer projectId, String content) {
+        if(content == null) {
+            return null;
+        }
+
+        List<Category> categories = json.fromJson(content, Category.class);
+        if(categories == null) {
+            LOGGER.error("Category null for project {}", projectId);
+        }
+        return categories;
     }
     
     /**
@@ -295,7 +739,7 @@ public class GitlabApiClient {
                 .withVisibility("private");
         
         try {
-            return gitlabApi.getGroupApi().createGroup(params);
+            return rateLimiter.call(() -> gitlabApi.getGroupApi().createGroup(params));
         } catch (GitLabApiException e) {
             LOGGER.error("",e);
             throw new EngagementGitlabException(e.getHttpStatus(), e.getReason()); 
@@ -315,7 +759,7 @@ public class GitlabApiClient {
         toUpdate.setName(name);
         
         try {
-            return gitlabApi.getGroupApi().updateGroup(toUpdate);
+            return rateLimiter.call(() -> gitlabApi.getGroupApi().updateGroup(toUpdate));
         } catch (GitLabApiException e) {
             throw new EngagementGitlabException(e.getHttpStatus(), e.getReason()); 
         }
@@ -324,7 +768,7 @@ public class GitlabApiClient {
     public Group updateGroup(Group group) {
         
         try {
-            return gitlabApi.getGroupApi().updateGroup(group);
+            return rateLimiter.call(() -> gitlabApi.getGroupApi().updateGroup(group));
         } catch (GitLabApiException e) {
             throw new EngagementGitlabException(e.getHttpStatus(), e.getReason()); 
         }
@@ -342,7 +786,7 @@ public class GitlabApiClient {
     
     public void deleteGroup(String groupId) {
         try {
-            gitlabApi.getGroupApi().deleteGroup(groupId);
+            rateLimiter.run(() -> gitlabApi.getGroupApi().deleteGroup(groupId));
         } catch (GitLabApiException e) {
             throw new EngagementGitlabException(e.getHttpStatus(), e.getReason());
         }
@@ -366,7 +810,7 @@ public class GitlabApiClient {
                 .withTagList(List.of(lodestarTag, String.format(lodestarTagFormat, EngagementState.UPCOMING)));
 
         try {
-            return gitlabApi.getProjectApi().createProject(newProject);
+            return rateLimiter.call(() -> gitlabApi.getProjectApi().createProject(newProject));
         } catch (GitLabApiException e) {
             throw new EngagementGitlabException(e.getHttpStatus(), e.getReason());
         }
@@ -374,7 +818,7 @@ public class GitlabApiClient {
 
     public Project updateProject(Project project) {
         try {
-            return gitlabApi.getProjectApi().updateProject(project);
+            return rateLimiter.call(() -> gitlabApi.getProjectApi().updateProject(project));
         } catch (GitLabApiException e) {
             throw new EngagementGitlabException(e.getHttpStatus(), e.getReason());
         }
@@ -382,7 +826,7 @@ public class GitlabApiClient {
 
     public Project transferProject(int projectId, int groupId) {
         try {
-            return gitlabApi.getProjectApi().transferProject(projectId, String.valueOf(groupId));
+            return rateLimiter.call(() -> gitlabApi.getProjectApi().transferProject(projectId, String.valueOf(groupId)));
         } catch (GitLabApiException e) {
             throw new EngagementGitlabException(e.getHttpStatus(), e.getReason());
         }
@@ -390,9 +834,9 @@ public class GitlabApiClient {
     
     public void activateDeployKey(Integer projectId) {
         try {
-            gitlabApi.getDeployKeysApi().enableDeployKey(projectId, deployKey);
-            gitlabApi.getDeployKeysApi().updateDeployKey(projectId , deployKey,
-                    String.format("%s %s %s",DEPLOYMENT_KEY_PREFIX, environment, DEPLOYMENT_KEY_POSTFIX), true);
+            rateLimiter.call(() -> gitlabApi.getDeployKeysApi().enableDeployKey(projectId, deployKey));
+            rateLimiter.call(() -> gitlabApi.getDeployKeysApi().updateDeployKey(projectId , deployKey,
+                    String.format("%s %s %s",DEPLOYMENT_KEY_PREFIX, environment, DEPLOYMENT_KEY_POSTFIX), true));
         } catch (GitLabApiException e) {
             //A notification should be sent here. This won't error out the process, but it should reconcile
             LOGGER.error(String.format("Failed to activate deploy key for project %d Status(%d) Reason(%s)", projectId,
@@ -401,7 +845,10 @@ public class GitlabApiClient {
         
     }
     
-    public void createEngagementFiles(Engagement engagement, String legacy) {
+    /**
+     * @return the id of the commit that created the files
+     */
+    public String createEngagementFiles(Engagement engagement, String legacy) {
         //Transient values set to null
         engagement.setParticipantCount(null);
         engagement.setHostingCount(null);
@@ -443,8 +890,9 @@ public class GitlabApiClient {
                 .withActions(commitFiles);
         
         try {
-            Commit commit = gitlabApi.getCommitsApi().createCommit(engagement.getProjectId(), payload);
+            Commit commit = rateLimiter.call(() -> gitlabApi.getCommitsApi().createCommit(engagement.getProjectId(), payload));
             LOGGER.debug("Create engagement file successful {}", commit);
+            return commit.getId();
         } catch (GitLabApiException e) {
             throw new EngagementGitlabException(e.getHttpStatus(), e.getReason());
         }
@@ -474,7 +922,13 @@ public class GitlabApiClient {
         commitUpdate(engagement.getProjectId(), message, commitActions, engagement.getLastUpdateByName(), engagement.getLastUpdateByEmail());
     }
     
-    public void updateEngagementFile(Engagement engagement, String legacy) {
+    /**
+     * Commits the engagement file and the legacy engagement.json
+     * @param legacyCommitId the last known commit of the legacy file. Gitlab rejects the commit (400) if the legacy
+     *                       file has changed since. Null if there is no legacy file, which is then created
+     * @return the id of the new commit
+     */
+    public String updateEngagementFile(Engagement engagement, String legacy, String legacyCommitId) {
         List<CommitAction> commitActions = new ArrayList<>();
 
         //Transient values set to null
@@ -496,17 +950,19 @@ public class GitlabApiClient {
         commitActions.add(action);
 
         action = new CommitAction()
-                .withAction(Action.UPDATE)
+                .withAction(legacyCommitId == null ? Action.CREATE : Action.UPDATE)
                 .withFilePath(ENGAGEMENT_JSON)
-                .withContent(legacy);
+                .withContent(legacy)
+                .withLastCommitId(legacyCommitId);
 
         commitActions.add(action);
 
-        commitUpdate(engagement.getProjectId(), message, commitActions, engagement.getLastUpdateByName(), engagement.getLastUpdateByEmail());
+        String commitId = commitUpdate(engagement.getProjectId(), message, commitActions, engagement.getLastUpdateByName(), engagement.getLastUpdateByEmail());
         engagement.setLastMessage(message);
+        return commitId;
     }
     
-    private void commitUpdate(int projectId, String message, List<CommitAction> actions, String authorName, String authorEmail) {
+    private String commitUpdate(int projectId, String message, List<CommitAction> actions, String authorName, String authorEmail) {
         
         CommitPayload payload = new CommitPayload()
                 .withBranch(branch)
@@ -516,8 +972,9 @@ public class GitlabApiClient {
                 .withActions(actions);
         
         try {
-            gitlabApi.getCommitsApi().createCommit(projectId, payload);
+            Commit commit = rateLimiter.call(() -> gitlabApi.getCommitsApi().createCommit(projectId, payload));
             LOGGER.debug("Update engagement file successful {}", projectId);
+            return commit.getId();
         } catch (GitLabApiException e) {
             throw new EngagementGitlabException(e.getHttpStatus(), e.getReason());
         }
@@ -530,18 +987,27 @@ public class GitlabApiClient {
             LOGGER.debug("h --> {}", h);
             ProjectHook hook = new ProjectHook().withPushEvents(true).withPushEventsBranchFilter(h.getPushEventsBranchFilter());
             try {
-                gitlabApi.getProjectApi().addHook(projectId, h.getBaseUrl(), hook, true, h.getToken());
+                rateLimiter.run(() -> gitlabApi.getProjectApi().addHook(projectId, h.getBaseUrl(), hook, true, h.getToken()));
                 LOGGER.debug("Updated hooks for project {}", projectId);
             } catch (GitLabApiException e) {
                 LOGGER.error("Unable to update hooks for project {} {} {}", projectId, e.getHttpStatus(), e.getReason());
             }
         });
+
+        if(pushHookUrl.isPresent() && pushHookToken.isPresent()) {
+            ProjectHook hook = new ProjectHook().withPushEvents(true).withPushEventsBranchFilter(branch);
+            try {
+                rateLimiter.run(() -> gitlabApi.getProjectApi().addHook(projectId, pushHookUrl.get(), hook, true, pushHookToken.get()));
+            } catch (GitLabApiException e) {
+                LOGGER.error("Unable to add push hook for project {} {} {}", projectId, e.getHttpStatus(), e.getReason());
+            }
+        }
     }
 
     public void deleteProjectHooks(int projectId) {
         getProjectHooks(projectId).forEach(hook -> {
             try {
-                gitlabApi.getProjectApi().deleteHook(hook);
+                rateLimiter.run(() -> gitlabApi.getProjectApi().deleteHook(hook));
             } catch (GitLabApiException e) {
                 throw new EngagementGitlabException(e.getHttpStatus(), e.getReason());
             }
@@ -550,7 +1016,7 @@ public class GitlabApiClient {
 
     public List<ProjectHook> getProjectHooks(int projectId) {
         try {
-            return gitlabApi.getProjectApi().getHooks(projectId);
+            return rateLimiter.call(() -> gitlabApi.getProjectApi().getHooks(projectId));
         } catch (GitLabApiException e) {
             LOGGER.error("Exception while getting hooks for project {} --> {}", projectId, e);
         }
@@ -562,6 +1028,15 @@ public class GitlabApiClient {
         return this.engagementPathPrefix;
     }
 
+    /**
+     * @param ref the ref a push was to
+     * @param paths the files the push added, modified or removed. Null if not known
+     * @return true if the push changed (or may have changed) the legacy engagement.json on the engagement branch
+     */
+    public boolean isLegacyFileChange(String ref, Set<String> paths) {
+        return ("refs/heads/" + branch).equals(ref) && (paths == null || paths.contains(ENGAGEMENT_JSON));
+    }
+
     private String getEmoji() {
         String bear = "\ud83d\udc3b";
 
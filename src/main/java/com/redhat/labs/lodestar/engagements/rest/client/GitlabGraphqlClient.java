@@ -0,0 +1,20 @@
+package com.redhat.labs.lodestar.engagements.rest.client;
+
+import javax.json.JsonObject;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+
+import org.eclipse.microprofile.rest.client.inject.RegisterRestClient;
+
+@RegisterRestClient(configKey = "gitlab.graphql")
+@Produces("application/json")
+@Consumes("application/json")
+@Path("api/graphql")
+public interface GitlabGraphqlClient {
+
+    @POST
+    JsonObject query(@HeaderParam("Authorization") String authorization, JsonObject request);
+}
@@ -0,0 +1,265 @@
+package com.redhat.labs.lodestar.engagements.rest.client;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.gitlab4j.api.GitLabApiException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.redhat.labs.lodestar.engagements.exception.EngagementGitlabException;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Throttles every call to the gitlab api. A token bucket caps the request rate and an AIMD limit caps the calls in
+ * flight: the limit grows by one per round of successful calls and halves when gitlab answers 429 or looks
+ * overloaded. It halves at most once per window: failures of calls started before the last decrease are part of
+ * the same congestion and do not lower it again. A 429 also pauses all calls for gitlab.rate.limit.pause.
+ *
+ * Calls are INTERACTIVE unless made inside {@link #bulk(Supplier)}. Bulk calls (refresh, sync, webhook and status
+ * sweeps) only get a share of the limit and never start while an interactive call is waiting.
+ */
+@ApplicationScoped
+public class GitlabRateLimiter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GitlabRateLimiter.class);
+    private static final String PRIORITY = "priority";
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    public enum Priority { INTERACTIVE, BULK }
+
+    @FunctionalInterface
+    public interface GitlabCall<T> {
+        T call() throws GitLabApiException;
+    }
+
+    @FunctionalInterface
+    public interface GitlabRun {
+        void run() throws GitLabApiException;
+    }
+
+    @ConfigProperty(name = "gitlab.rate.limit.per.second")
+    double ratePerSecond;
+
+    @ConfigProperty(name = "gitlab.rate.limit.burst")
+    int burst;
+
+    @ConfigProperty(name = "gitlab.rate.limit.pause")
+    Duration pause;
+
+    @ConfigProperty(name = "gitlab.concurrency.min")
+    int minLimit;
+
+    @ConfigProperty(name = "gitlab.concurrency.max")
+    int maxLimit;
+
+    @ConfigProperty(name = "gitlab.concurrency.bulk.share")
+    double bulkShare;
+
+    @ConfigProperty(name = "gitlab.permit.timeout")
+    Duration permitTimeout;
+
+    @Inject
+    MeterRegistry registry;
+
+    private final ThreadLocal<Priority> priority = ThreadLocal.withInitial(() -> Priority.INTERACTIVE);
+    private final Map<Priority, Integer> waiting = new EnumMap<>(Priority.class);
+    private final Map<Priority, Timer> waitTimers = new EnumMap<>(Priority.class);
+
+    private double tokens;
+    private long lastRefill;
+    private double limit;
+    private int inFlight;
+    private long pausedUntil;
+    private long started;
+    private long decreasedAt;
+
+    @PostConstruct
+    void setup() {
+        tokens = burst;
+        lastRefill = System.nanoTime();
+        pausedUntil = lastRefill;
+        limit = maxLimit;
+
+        for(Priority p : Priority.values()) {
+            waiting.put(p, 0);
+            waitTimers.put(p, registry.timer("gitlab.limiter.wait", Tags.of(PRIORITY, p.name())));
+            registry.gauge("gitlab.limiter.waiting", Tags.of(PRIORITY, p.name()), this, l -> l.getWaiting(p));
+        }
+        registry.gauge("gitlab.limiter.limit", this, GitlabRateLimiter::getLimit);
+        registry.gauge("gitlab.limiter.inflight", this, GitlabRateLimiter::getInFlight);
+        registry.gauge("gitlab.limiter.tokens", this, GitlabRateLimiter::getTokens);
+    }
+
+    /**
+     * Runs the work with every gitlab call it makes on this thread marked as bulk
+     */
+    public <T> T bulk(Supplier<T> work) {
+        return withPriority(Priority.BULK, work);
+    }
+
+    public void bulk(Runnable work) {
+        withPriority(Priority.BULK, () -> {
+            work.run();
+            return null;
+        });
+    }
+
+    public <T> T withPriority(Priority p, Supplier<T> work) {
+        Priority previous = priority.get();
+        priority.set(p);
+        try {
+            return work.get();
+        } finally {
+            priority.set(previous);
+        }
+    }
+
+    public Priority getPriority() {
+        return priority.get();
+    }
+
+    public void run(GitlabRun run) throws GitLabApiException {
+        call(() -> {
+            run.run();
+            return null;
+        });
+    }
+
+    public <T> T call(GitlabCall<T> call) throws GitLabApiException {
+        long ticket = acquire(priority.get());
+
+        int status = 200;
+        try {
+            return call.call();
+        } catch (GitLabApiException e) {
+            status = e.getHttpStatus();
+            throw e;
+        } finally {
+            release(ticket, status);
+        }
+    }
+
+    /**
+     * @return the ticket of the call, passed back to {@link #release(long, int)}
+     */
+    long acquire(Priority p) {
+        long start = System.nanoTime();
+        long deadline = start + permitTimeout.toNanos();
+        long ticket;
+
+        synchronized (this) {
+            waiting.merge(p, 1, Integer::sum);
+            try {
+                while(true) {
+                    refill();
+                    long now = System.nanoTime();
+                    long wait;
+
+                    if(now < pausedUntil) {
+                        wait = pausedUntil - now;
+                    } else if(!hasSlot(p)) {
+                        wait = deadline - now; //woken by a release
+                    } else if(tokens < 1) {
+                        wait = (long) ((1 - tokens) / ratePerSecond * TimeUnit.SECONDS.toNanos(1)) + 1;
+                    } else {
+                        tokens--;
+                        inFlight++;
+                        ticket = ++started;
+                        break;
+                    }
+
+                    if(now >= deadline) {
+                        registry.counter("gitlab.limiter.timeouts", Tags.of(PRIORITY, p.name())).increment();
+                        throw new EngagementGitlabException(TOO_MANY_REQUESTS, "Gave up waiting for a gitlab permit", p.name());
+                    }
+
+                    TimeUnit.NANOSECONDS.timedWait(this, Math.min(wait, deadline - now));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new EngagementGitlabException(TOO_MANY_REQUESTS, "Interrupted waiting for a gitlab permit", e);
+            } finally {
+                waiting.merge(p, -1, Integer::sum);
+            }
+        }
+
+        waitTimers.get(p).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return ticket;
+    }
+
+    synchronized void release(long ticket, int status) {
+        inFlight--;
+
+        if(status == TOO_MANY_REQUESTS) {
+            decrease(ticket);
+            tokens = 0;
+            pausedUntil = System.nanoTime() + pause.toNanos();
+            registry.counter("gitlab.limiter.throttled").increment();
+            LOGGER.warn("Gitlab rate limit hit. Pausing {} and concurrency is {}", pause, getLimit());
+        } else if(isOverloaded(status)) {
+            decrease(ticket);
+            LOGGER.debug("Gitlab returned {}. Concurrency is {}", status, getLimit());
+        } else {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Halves the limit unless the call started before the last decrease
+     */
+    private void decrease(long ticket) {
+        if(ticket > decreasedAt) {
+            limit = Math.max(minLimit, limit / 2);
+            decreasedAt = started;
+        }
+    }
+
+    private boolean isOverloaded(int status) {
+        return status == 0 || status == 502 || status == 503 || status == 504;
+    }
+
+    private boolean hasSlot(Priority p) {
+        if(p == Priority.INTERACTIVE) {
+            return inFlight < getLimit();
+        }
+
+        int bulkLimit = Math.max(1, (int) (getLimit() * bulkShare));
+        return waiting.get(Priority.INTERACTIVE) == 0 && inFlight < bulkLimit;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerSecond / TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getWaiting(Priority p) {
+        return waiting.get(p);
+    }
+
+    public synchronized double getTokens() {
+        refill();
+        return tokens;
+    }
+}
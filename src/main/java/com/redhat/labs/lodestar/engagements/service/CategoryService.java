@@ -2,6 +2,7 @@ package com.redhat.labs.lodestar.engagements.service;
 
 import java.time.Instant;
 import java.util.*;
+import java.util.stream.Collectors;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
@@ -19,13 +20,11 @@ import com.redhat.labs.lodestar.engagements.model.Counter;
 import com.redhat.labs.lodestar.engagements.model.Engagement;
 import com.redhat.labs.lodestar.engagements.repository.CategoryRepository;
 
-import io.vertx.mutiny.core.eventbus.EventBus;
 
 @ApplicationScoped
 public class CategoryService {
     private static final Logger LOGGER = LoggerFactory.getLogger(CategoryService.class);
     
-    public static final String REFRESH_CATEGORIES = "refresh.category_event";
     public static final String MERGE_CATEGORIES = "merge.category.event";
     
     @Inject
@@ -37,7 +36,7 @@ public class CategoryService {
     static final Javers javers = JaversBuilder.javers().withListCompareAlgorithm(ListCompareAlgorithm.LEVENSHTEIN_DISTANCE).build();
     
     @Inject
-    EventBus bus;
+    Outbox outbox;
     
     public List<Category> getCategories(String engagementUuid) {
         List<Category> categories = categoryRepository.getCategories(engagementUuid);
@@ -101,15 +100,30 @@ public class CategoryService {
             categoryRepository.persist(cat); // Not in db. Add new
         });
 
-        bus.publish(MERGE_CATEGORIES, engagement);
+        outbox.enqueue(MERGE_CATEGORIES, engagement);
     }
     
-    public long purge() {
-        return categoryRepository.deleteAll();
+    /**
+     * @return every category grouped by engagement uuid
+     */
+    public Map<String, List<Category>> getCategoriesByEngagement() {
+        return categoryRepository.listAll().stream().collect(Collectors.groupingBy(Category::getEngagementUuid));
     }
-    
-    public void refresh(List<Category> category) {
-        categoryRepository.persist(category);
+
+    /**
+     * Replaces all categories. Does not update gitlab
+     * @param categories the complete new set of categories
+     */
+    public void replaceAll(List<Category> categories) {
+        categoryRepository.replaceAll(categories);
+    }
+
+    /**
+     * Replaces the categories of many engagements at once. Does not update gitlab
+     * @param categories the full set of categories by engagement uuid
+     */
+    public void refresh(Map<String, List<Category>> categories) {
+        categoryRepository.replaceCategories(categories);
     }
     
 }
@@ -0,0 +1,216 @@
+package com.redhat.labs.lodestar.engagements.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseBroadcaster;
+import javax.ws.rs.sse.SseEventSink;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoException;
+import com.redhat.labs.lodestar.engagements.model.ChangeSet;
+import com.redhat.labs.lodestar.engagements.model.ChangeVersion;
+import com.redhat.labs.lodestar.engagements.model.Engagement;
+import com.redhat.labs.lodestar.engagements.model.EngagementChange;
+import com.redhat.labs.lodestar.engagements.repository.EngagementChangeRepository;
+
+/**
+ * Every engagement write goes through here. The cached copy is dropped, the change is given the next version of
+ * a counter shared by all instances and logged, and it is pushed to server sent event subscribers. While the
+ * change stream is running subscribers are fed from it instead so they see changes made by every instance.
+ * <p>
+ * A version is reserved before its change is logged, so the log can briefly have gaps. Readers are only given
+ * changes up to the first gap. A gap that outlives the grace period is a change that was never logged and is
+ * skipped.
+ */
+@ApplicationScoped
+public class ChangeFeed {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChangeFeed.class);
+
+    public static final String ENGAGEMENTS = "engagements";
+    public static final String CHANGE_EVENT = "change";
+    public static final String RESET_EVENT = "reset";
+
+    @Inject
+    EngagementCache engagementCache;
+
+    @Inject
+    EngagementChangeRepository engagementChangeRepository;
+
+    @ConfigProperty(name = "changes.gap.grace")
+    Duration gapGrace;
+
+    private Sse sse;
+    private SseBroadcaster broadcaster;
+    private volatile boolean streaming;
+
+    public void changed(String uuid) {
+        engagementCache.invalidate(uuid);
+        record(List.of(uuid), false);
+    }
+
+    public void changed(Engagement engagement) {
+        engagementCache.invalidate(engagement);
+        record(List.of(engagement.getUuid()), false);
+    }
+
+    public void changed(Collection<Engagement> engagements) {
+        if(engagements.isEmpty()) {
+            return;
+        }
+
+        engagementCache.invalidate(engagements);
+        record(engagements.stream().map(Engagement::getUuid).collect(Collectors.toList()), false);
+    }
+
+    /**
+     * Everything may have changed (a full refresh). Readers of the feed should re-read all engagements
+     */
+    public void reset() {
+        engagementCache.invalidateAll();
+        record(Collections.singletonList(null), true);
+    }
+
+    public long getVersion() {
+        return ChangeVersion.current(ENGAGEMENTS);
+    }
+
+    /**
+     * @param since the version the caller has seen
+     * @return the engagements changed after since. Reset if they cannot be listed
+     */
+    public ChangeSet getChangesSince(long since) {
+        long counter = getVersion();
+        List<EngagementChange> changes = engagementChangeRepository.findSince(since);
+        long oldest = engagementChangeRepository.getOldestVersion().orElse(counter + 1);
+
+        boolean trimmed = since < oldest - 1 && since < counter;
+        long from = trimmed ? oldest - 1 : Math.min(since, counter);
+        changes = settled(changes, from);
+
+        long version = changes.isEmpty() ? from : changes.get(changes.size() - 1).getVersion();
+        boolean reset = since > counter || trimmed || changes.stream().anyMatch(EngagementChange::isReset);
+
+        ChangeSet changeSet = ChangeSet.builder().version(version).reset(reset).build();
+        if(!reset) {
+            changes.forEach(c -> changeSet.getUuids().add(c.getUuid()));
+        }
+
+        return changeSet;
+    }
+
+    /**
+     * Sends the changes after since and then every change made through this instance as it happens
+     * @param sse the sse context
+     * @param sink the subscriber
+     * @param since the last version the subscriber has seen. Null for new changes only
+     */
+    public void subscribe(Sse sse, SseEventSink sink, Long since) {
+        broadcaster(sse).register(sink);
+
+        if(since != null) {
+            ChangeSet backlog = getChangesSince(since);
+            if(backlog.isReset()) {
+                sink.send(event(sse, EngagementChange.builder().version(backlog.getVersion()).reset(true).build()));
+            } else {
+                settled(engagementChangeRepository.findSince(since), since).stream().filter(c -> c.getVersion() <= backlog.getVersion())
+                        .forEach(c -> sink.send(event(sse, c)));
+            }
+        }
+    }
+
+    /**
+     * @param streaming true when changes from all instances arrive through {@link #streamed(EngagementChange)}
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * A change logged by any instance, as seen by the change stream
+     */
+    public void streamed(EngagementChange change) {
+        publish(List.of(change));
+    }
+
+    /**
+     * @param changes the log after from in version order
+     * @param from the version the reader has seen
+     * @return the changes up to the first gap that may still be filled
+     */
+    List<EngagementChange> settled(List<EngagementChange> changes, long from) {
+        Instant settled = Instant.now().minus(gapGrace);
+        long last = from;
+
+        List<EngagementChange> readable = new ArrayList<>();
+        for(EngagementChange change : changes) {
+            if(change.getVersion() > last + 1 && change.getTime().isAfter(settled)) {
+                break;
+            }
+            readable.add(change);
+            last = change.getVersion();
+        }
+
+        return readable;
+    }
+
+    private synchronized SseBroadcaster broadcaster(Sse sse) {
+        if(broadcaster == null) {
+            this.sse = sse;
+            broadcaster = sse.newBroadcaster();
+        }
+
+        return broadcaster;
+    }
+
+    /**
+     * A failure here does not fail the write that has already happened. Feed readers miss the change until the
+     * next change to the same engagement
+     */
+    private void record(List<String> uuids, boolean reset) {
+        try {
+            long last = ChangeVersion.increment(ENGAGEMENTS, uuids.size());
+            long version = last - uuids.size();
+            Instant now = Instant.now();
+
+            List<EngagementChange> changes = new ArrayList<>();
+            for(String uuid : uuids) {
+                changes.add(EngagementChange.builder().version(++version).uuid(uuid).reset(reset).time(now).build());
+            }
+
+            engagementChangeRepository.persist(changes);
+
+            if(!streaming) {
+                publish(changes);
+            }
+        } catch (MongoException e) {
+            LOGGER.error("Unable to record change to {}", uuids, e);
+        }
+    }
+
+    private void publish(List<EngagementChange> changes) {
+        SseBroadcaster current;
+        synchronized (this) {
+            current = broadcaster;
+        }
+
+        if(current != null) {
+            changes.forEach(c -> current.broadcast(event(sse, c)));
+        }
+    }
+
+    private OutboundSseEvent event(Sse sse, EngagementChange change) {
+        return sse.newEventBuilder().id(String.valueOf(change.getVersion())).name(change.isReset() ? RESET_EVENT : CHANGE_EVENT)
+                .mediaType(MediaType.TEXT_PLAIN_TYPE).data(String.class, change.isReset() ? "" : change.getUuid()).build();
+    }
+}
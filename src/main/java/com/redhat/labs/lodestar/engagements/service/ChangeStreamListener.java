@@ -0,0 +1,276 @@
+package com.redhat.labs.lodestar.engagements.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.conversions.Bson;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.redhat.labs.lodestar.engagements.model.Category;
+import com.redhat.labs.lodestar.engagements.model.Engagement;
+import com.redhat.labs.lodestar.engagements.model.EngagementChange;
+import com.redhat.labs.lodestar.engagements.model.SyncCheckpoint;
+import com.redhat.labs.lodestar.engagements.repository.CategoryRepository;
+import com.redhat.labs.lodestar.engagements.repository.EngagementChangeRepository;
+import com.redhat.labs.lodestar.engagements.repository.EngagementRepository;
+
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+
+/**
+ * Applies writes made by any instance to the state this instance holds locally. Engagement and category writes
+ * drop cached engagements and reschedule state transitions. Change log entries are pushed to this instance's
+ * change feed subscribers. A refresh swaps the engagement collection so it arrives as a rename and clears
+ * everything.
+ *
+ * Change streams need a replica set. Against a standalone server the listener turns itself off and each instance
+ * only sees its own writes.
+ */
+@ApplicationScoped
+public class ChangeStreamListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChangeStreamListener.class);
+
+    static final String CHECKPOINT = "mongo.change.stream";
+    private static final int NOT_A_REPLICA_SET = 40573;
+    private static final int HISTORY_LOST = 286;
+    private static final int INVALID_RESUME_TOKEN = 260;
+
+    @ConfigProperty(name = "change.stream.enabled")
+    boolean enabled;
+
+    @ConfigProperty(name = "change.stream.checkpoint.interval")
+    Duration checkpointInterval;
+
+    @ConfigProperty(name = "change.stream.retry.delay")
+    Duration retryDelay;
+
+    @Inject
+    EngagementRepository engagementRepository;
+
+    @Inject
+    CategoryRepository categoryRepository;
+
+    @Inject
+    EngagementChangeRepository engagementChangeRepository;
+
+    @Inject
+    EngagementCache engagementCache;
+
+    @Inject
+    StateTransitionScheduler stateTransitionScheduler;
+
+    @Inject
+    ChangeFeed changeFeed;
+
+    private ExecutorService executor;
+    private volatile boolean running;
+    private volatile BsonDocument resumeToken;
+    private BsonDocument savedToken;
+    private Instant lastSave = Instant.EPOCH;
+
+    void onStart(@Observes StartupEvent event) {
+        if(!enabled) {
+            LOGGER.info("Change stream disabled");
+            return;
+        }
+
+        resumeToken = SyncCheckpoint.findByName(CHECKPOINT).map(SyncCheckpoint::getResumeToken).orElse(null);
+        savedToken = resumeToken;
+        running = true;
+
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "engagement-change-stream");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.submit(this::listen);
+    }
+
+    void onStop(@Observes ShutdownEvent event) {
+        if(executor != null) {
+            running = false;
+            executor.shutdownNow();
+            saveCheckpoint(true);
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void listen() {
+        while(running) {
+            try (MongoChangeStreamCursor<ChangeStreamDocument<BsonDocument>> cursor = watch().cursor()) {
+                changeFeed.setStreaming(true);
+                LOGGER.info("Listening for changes from {}", resumeToken == null ? "now" : "resume token");
+
+                while(running) {
+                    ChangeStreamDocument<BsonDocument> change = cursor.tryNext();
+                    if(change != null) {
+                        apply(change);
+                    }
+
+                    if(cursor.getResumeToken() != null) {
+                        resumeToken = cursor.getResumeToken();
+                    }
+                    saveCheckpoint(false);
+                }
+            } catch (MongoCommandException e) {
+                if(!handle(e)) {
+                    running = false;
+                }
+            } catch (MongoException e) {
+                LOGGER.warn("Change stream interrupted. Retrying in {}", retryDelay, e);
+                pause();
+            } catch (RuntimeException e) {
+                LOGGER.error("Unable to apply change. Retrying in {}", retryDelay, e);
+                pause();
+            } finally {
+                changeFeed.setStreaming(false);
+            }
+        }
+    }
+
+    /**
+     * @return false if the listener should stop
+     */
+    private boolean handle(MongoCommandException e) {
+        if(e.getErrorCode() == NOT_A_REPLICA_SET) {
+            LOGGER.warn("Change streams are not supported by this mongo deployment. Only local writes will be seen");
+            return false;
+        }
+
+        if(e.getErrorCode() == HISTORY_LOST || e.getErrorCode() == INVALID_RESUME_TOKEN) {
+            LOGGER.warn("Unable to resume change stream. Clearing local state and listening from now", e);
+            resumeToken = null;
+            resetLocalState();
+            return true;
+        }
+
+        LOGGER.warn("Change stream failed. Retrying in {}", retryDelay, e);
+        pause();
+        return true;
+    }
+
+    private ChangeStreamIterable<BsonDocument> watch() {
+        Set<String> collections = Set.of(name(engagementRepository.mongoCollection().getNamespace()),
+                name(categoryRepository.mongoCollection().getNamespace()),
+                name(engagementChangeRepository.mongoCollection().getNamespace()));
+
+        List<Bson> pipeline = List.of(Aggregates.match(Filters.or(Filters.in("ns.coll", collections), Filters.in("to.coll", collections))));
+
+        ChangeStreamIterable<BsonDocument> stream = engagementRepository.mongoDatabase().watch(pipeline, BsonDocument.class)
+                .fullDocument(FullDocument.UPDATE_LOOKUP).maxAwaitTime(1, TimeUnit.SECONDS);
+
+        return resumeToken == null ? stream : stream.resumeAfter(resumeToken);
+    }
+
+    void apply(ChangeStreamDocument<BsonDocument> change) {
+        String collection = change.getNamespace() == null ? null : change.getNamespace().getCollectionName();
+        BsonDocument document = change.getFullDocument();
+
+        switch (change.getOperationType()) {
+        case INSERT:
+        case UPDATE:
+        case REPLACE:
+            if(document == null) { //deleted before the lookup
+                engagementCache.invalidateAll();
+            } else if(collection.equals(name(engagementRepository.mongoCollection().getNamespace()))) {
+                Engagement engagement = decode(document, Engagement.class);
+                engagementCache.invalidate(engagement);
+                stateTransitionScheduler.schedule(engagement);
+            } else if(collection.equals(name(categoryRepository.mongoCollection().getNamespace()))) {
+                engagementCache.invalidate(decode(document, Category.class).getEngagementUuid());
+            } else {
+                changeFeed.streamed(decode(document, EngagementChange.class));
+            }
+            break;
+        case DELETE:
+            // only the _id is known. Engagement deletes are rare. Category deletes come with an engagement update
+            if(collection.equals(name(engagementRepository.mongoCollection().getNamespace()))) {
+                engagementCache.invalidateAll();
+            }
+            break;
+        case RENAME:
+        case DROP:
+            resetLocalState();
+            break;
+        default:
+            LOGGER.debug("Ignoring {} change", change.getOperationType());
+        }
+    }
+
+    private void resetLocalState() {
+        engagementCache.invalidateAll();
+        stateTransitionScheduler.rebuild();
+    }
+
+    private <T> T decode(BsonDocument document, Class<T> clazz) {
+        Codec<T> codec = engagementRepository.mongoCollection().getCodecRegistry().get(clazz);
+        return codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+    }
+
+    /**
+     * Written at most once per interval. On restart changes since the checkpoint are applied again, which is safe
+     * because everything done here can be repeated
+     */
+    private synchronized void saveCheckpoint(boolean force) {
+        if(resumeToken == null || resumeToken.equals(savedToken)) {
+            return;
+        }
+
+        Instant now = Instant.now();
+        if(!force && Duration.between(lastSave, now).compareTo(checkpointInterval) < 0) {
+            return;
+        }
+
+        try {
+            SyncCheckpoint checkpoint = SyncCheckpoint.findByName(CHECKPOINT)
+                    .orElseGet(() -> SyncCheckpoint.builder().name(CHECKPOINT).build());
+            checkpoint.setResumeToken(resumeToken);
+            checkpoint.persistOrUpdate();
+
+            savedToken = resumeToken;
+            lastSave = now;
+        } catch (MongoException e) {
+            LOGGER.warn("Unable to save change stream checkpoint", e);
+        }
+    }
+
+    private void pause() {
+        try {
+            Thread.sleep(retryDelay.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    private static String name(MongoNamespace namespace) {
+        return namespace.getCollectionName();
+    }
+}
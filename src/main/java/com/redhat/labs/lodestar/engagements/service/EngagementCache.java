@@ -0,0 +1,147 @@
+package com.redhat.labs.lodestar.engagements.service;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Optional;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.core.EntityTag;
+
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.redhat.labs.lodestar.engagements.model.Engagement;
+import com.redhat.labs.lodestar.engagements.repository.EngagementRepository;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * Read-through cache of single engagement lookups. Engagements are held as encoded bson and decoded on every read
+ * so each caller gets its own copy to change. Anything that writes an engagement must invalidate it here, which
+ * {@link ChangeFeed} does for every recorded change.
+ */
+@ApplicationScoped
+public class EngagementCache {
+
+    @ConfigProperty(name = "engagement.cache.size")
+    long maximumSize;
+
+    @ConfigProperty(name = "engagement.cache.ttl")
+    Duration ttl;
+
+    @Inject
+    MeterRegistry registry;
+
+    @Inject
+    EngagementRepository engagementRepository;
+
+    private Cache<String, Entry> byUuid;
+    private Cache<Integer, String> uuidByProject;
+    private Codec<Engagement> codec;
+
+    @PostConstruct
+    void createCaches() {
+        byUuid = Caffeine.newBuilder().maximumSize(maximumSize).expireAfterWrite(ttl).recordStats().build();
+        uuidByProject = Caffeine.newBuilder().maximumSize(maximumSize).expireAfterWrite(ttl).recordStats().build();
+        codec = engagementRepository.mongoCollection().getCodecRegistry().get(Engagement.class);
+
+        CaffeineCacheMetrics.monitor(registry, byUuid, "engagements");
+        CaffeineCacheMetrics.monitor(registry, uuidByProject, "engagement-projects");
+    }
+
+    /**
+     * Engagements that are not found are not cached
+     */
+    public Optional<Engagement> get(String uuid) {
+        return load(uuid).map(entry -> entry.document.decode(codec));
+    }
+
+    /**
+     * A digest of the stored engagement. It changes with any field, not only when lastUpdate does. Get this
+     * before the engagement so a concurrent write can only make the tag older than the body, never newer.
+     * @param uuid the engagement uuid
+     * @return a strong entity tag or empty if there is no engagement
+     */
+    public Optional<EntityTag> getEntityTag(String uuid) {
+        return load(uuid).map(entry -> entry.tag);
+    }
+
+    private Optional<Entry> load(String uuid) {
+        return Optional.ofNullable(byUuid.get(uuid, key -> engagementRepository.getEngagement(key).map(this::toEntry).orElse(null)));
+    }
+
+    private Entry toEntry(Engagement engagement) {
+        RawBsonDocument document = new RawBsonDocument(engagement, codec);
+        ByteBuffer bytes = document.getByteBuffer().asNIO();
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(bytes);
+            return new Entry(document, new EntityTag(Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest())));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Engagements without a project (id 0) are not cached by project
+     */
+    public Optional<Engagement> getByProject(int projectId) {
+        if(projectId == 0) {
+            return engagementRepository.getEngagementByProject(projectId);
+        }
+
+        String uuid = uuidByProject.get(projectId, key -> engagementRepository.getEngagementByProject(key)
+                .map(Engagement::getUuid).orElse(null));
+
+        Optional<Engagement> engagement = uuid == null ? Optional.empty() : get(uuid);
+
+        if(engagement.isPresent() && engagement.get().getProjectId() != projectId) { //project moved since cached
+            uuidByProject.invalidate(projectId);
+            return engagementRepository.getEngagementByProject(projectId);
+        }
+
+        return engagement;
+    }
+
+    public void invalidate(String uuid) {
+        byUuid.invalidate(uuid);
+    }
+
+    /**
+     * Also drops the project lookup in case the project id changed
+     */
+    public void invalidate(Engagement engagement) {
+        byUuid.invalidate(engagement.getUuid());
+        uuidByProject.invalidate(engagement.getProjectId());
+    }
+
+    public void invalidate(Collection<Engagement> engagements) {
+        engagements.forEach(this::invalidate);
+    }
+
+    public void invalidateAll() {
+        byUuid.invalidateAll();
+        uuidByProject.invalidateAll();
+    }
+
+    private static class Entry {
+        private final RawBsonDocument document;
+        private final EntityTag tag;
+
+        Entry(RawBsonDocument document, EntityTag tag) {
+            this.document = document;
+            this.tag = tag;
+        }
+    }
+}
@@ -2,18 +2,22 @@ package com.redhat.labs.lodestar.engagements.service;
 
 import java.time.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.ws.rs.*;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
 import com.redhat.labs.lodestar.engagements.model.*;
 import io.quarkus.scheduler.Scheduled;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.apache.http.HttpStatus;
+import org.gitlab4j.api.models.Project;
 import org.javers.core.Javers;
 import org.javers.core.JaversBuilder;
 import org.javers.core.diff.Diff;
@@ -26,7 +30,8 @@ import com.redhat.labs.lodestar.engagements.utils.PageFilter;
 import com.redhat.labs.lodestar.engagements.exception.ErrorMessage;
 import com.redhat.labs.lodestar.engagements.repository.EngagementRepository;
 
-import io.vertx.mutiny.core.eventbus.EventBus;
+import com.mongodb.client.FindIterable;
+
 
 @ApplicationScoped
 public class EngagementService {
@@ -37,11 +42,13 @@ public class EngagementService {
     public static final String DELETE_ENGAGEMENT = "delete.engagement.event";
     public static final String UPDATE_STATUS = "update.status.engagement.event";
     public static final String CREATE_ENGAGEMENT_FILES = "create.engagement.file.event";
+    public static final String GITLAB_ACTIVITY_CHECKPOINT = "gitlab.project.activity";
+    static final String CHECK_DB_LEASE = "engagements.check.db";
+    static final String SYNC_LEASE = "engagements.sync";
+    static final String UPDATE_STATUS_LEASE = "engagements.update.status";
+    static final String LAST_UPDATE_LEASE = "engagements.check.last.update";
     public static final String LAUNCH_MESSAGE = "\uD83D\uDEA2 \uD83C\uDFF4\u200D☠️ \uD83D\uDE80";
     
-    @Inject
-    EventBus bus;
-    
     @Inject
     EngagementRepository engagementRepository;
 
@@ -59,13 +66,31 @@ public class EngagementService {
     
     @Inject
     GitlabService gitlabService;
+
+    @Inject
+    StateTransitionScheduler stateTransitionScheduler;
+
+    @Inject
+    EngagementCache engagementCache;
+
+    @Inject
+    ChangeFeed changeFeed;
+
+    @Inject
+    LeaseService leaseService;
+
+    @Inject
+    Outbox outbox;
+
+    @ConfigProperty(name = "sync.activity.overlap")
+    Duration activityOverlap;
     
     Javers javers;
     
     @PostConstruct
     public void setupJavers() {
         List<String> ignoredProps = Arrays.asList("id", "createdDate", "creationDetails", "lastMessage", "lastUpdateByEmail", "lastUpdateByName",
-                "lastUpdate", "projectId", "currentState");
+                "lastUpdate", "projectId", "currentState", "engagementSha", "categorySha");
 
         javers = JaversBuilder.javers().withListCompareAlgorithm(ListCompareAlgorithm.LEVENSHTEIN_DISTANCE)
                 .registerEntity(new EntityDefinition(Engagement.class, "uuid", ignoredProps)).build();
@@ -73,49 +98,70 @@ public class EngagementService {
 
     @Scheduled(every="5m")
     void checkDB() {
-        long count = engagementRepository.count();
+        leaseService.runIfLeader(CHECK_DB_LEASE, () -> {
+            long count = engagementRepository.count();
 
-        if(count == 0) {
-            LOGGER.info("No engagements found. Initiating refresh");
-            refresh();
-        }
+            if(count == 0) {
+                LOGGER.info("No engagements found. Initiating refresh");
+                refresh();
+            }
+        });
     }
 
+    @Scheduled(every = "{sync.every}", delayed = "2m")
+    void syncTimer() {
+        leaseService.runIfLeader(SYNC_LEASE, this::syncChanges);
+    }
+
+    /**
+     * State changes are made by the {@link StateTransitionScheduler} as they happen. This catches any it missed
+     * (no instance held the transition lease, a restart) and only reads engagements whose state is out of date.
+     */
     @Scheduled(cron = "{cron.status}")
     void updateStatusTimer() {
+        leaseService.runIfLeader(UPDATE_STATUS_LEASE, this::updateStaleStates);
+    }
+
+    private void updateStaleStates() {
         LOGGER.debug("Updating states");
-        List<Engagement> changedEngagements = new ArrayList<>();
-        engagementRepository.findAll().stream().forEach(e -> {
-            if(e.getCurrentState() == null || e.getCurrentState() != e.getState()) {
-                e.setCurrentState(e.getState());
-                changedEngagements.add(e);
-                bus.publish(UPDATE_STATUS, e);
-            }
+        Instant now = Instant.now();
+        List<Engagement> changedEngagements = engagementRepository.findEngagementsWithStaleState(now);
+        Map<String, EngagementState> previous = new HashMap<>();
+        changedEngagements.forEach(e -> {
+            previous.put(e.getUuid(), e.getCurrentState());
+            e.setCurrentState(e.getState(now));
         });
 
         if(!changedEngagements.isEmpty()) {
             LOGGER.debug("Updating {} states ", changedEngagements.size());
-            engagementRepository.update(changedEngagements);
+            engagementRepository.updateStates(changedEngagements);
+            enqueueOrUndo(() -> outbox.enqueue(UPDATE_STATUS, changedEngagements), () -> {
+                changedEngagements.forEach(e -> e.setCurrentState(previous.get(e.getUuid())));
+                engagementRepository.updateStates(changedEngagements);
+            });
+            changeFeed.changed(changedEngagements);
         }
     }
 
     @Scheduled(every = "5m", delayed = "1m")
     void checkLastUpdate() {
-        List<Engagement> noUpdated = engagementRepository.findEngagementsWithoutLastUpdate();
-        if(!noUpdated.isEmpty()) {
-            LOGGER.info("Attempting update of last activity for {} engagements", noUpdated.size());
-            activityService.getLastActivityPerEngagement(noUpdated);
-            engagementRepository.update(noUpdated);
-            LOGGER.info("Last updated check completed with {} changes", noUpdated.size());
-        }
+        leaseService.runIfLeader(LAST_UPDATE_LEASE, () -> {
+            List<Engagement> noUpdated = engagementRepository.findEngagementsWithoutLastUpdate();
+            if(!noUpdated.isEmpty()) {
+                LOGGER.info("Attempting update of last activity for {} engagements", noUpdated.size());
+                activityService.getLastActivityPerEngagement(noUpdated);
+                engagementRepository.updateLastUpdates(noUpdated);
+                changeFeed.changed(noUpdated);
+                LOGGER.info("Last updated check completed with {} changes", noUpdated.size());
+            }
+        });
     }
 
     public void updateAllEngagementStates() {
         LOGGER.debug("Updating all states in gitlab");
-        engagementRepository.findAll().stream().forEach(e -> {
-                e.setCurrentState(e.getState());
-                bus.publish(UPDATE_STATUS, e);
-        });
+        List<Engagement> engagements = engagementRepository.findAll().list();
+        engagements.forEach(e -> e.setCurrentState(e.getState()));
+        outbox.enqueue(UPDATE_STATUS, engagements);
     }
 
     public void create(Engagement engagement) {
@@ -132,8 +178,9 @@ public class EngagementService {
         engagement.updateTimestamps();
         engagement.setCreator();
         engagementRepository.persist(engagement);
-
-        bus.publish(CREATE_ENGAGEMENT, engagement);
+        enqueueOrUndo(() -> outbox.enqueue(CREATE_ENGAGEMENT, engagement), () -> engagementRepository.delete(engagement));
+        changeFeed.changed(engagement);
+        stateTransitionScheduler.schedule(engagement);
     }
 
     /**
@@ -162,7 +209,7 @@ public class EngagementService {
         LOGGER.debug("Retry update {}", uuid);
         String messageKey = "message";
         String messageValue = "%s not found for uuid %s";
-        Optional<Engagement> option = getEngagement(uuid);
+        Optional<Engagement> option = engagementRepository.getEngagement(uuid);
         if(option.isEmpty()) {
             return  Map.of(messageKey, String.format(messageValue, "Engagement", uuid));
         }
@@ -176,12 +223,12 @@ public class EngagementService {
             engagement.setLastMessage(lastMessage);
 
             if(gitlabService.doesEngagementJsonExist(engagement.getProjectId())) {
-                bus.publish(UPDATE_ENGAGEMENT, engagement);
+                outbox.enqueue(UPDATE_ENGAGEMENT, engagement);
             } else {
-                bus.publish(CREATE_ENGAGEMENT_FILES, engagement);
+                outbox.enqueue(CREATE_ENGAGEMENT_FILES, engagement);
             }
         } else {
-            bus.publish(CREATE_ENGAGEMENT, engagement);
+            outbox.enqueue(CREATE_ENGAGEMENT, engagement);
         }
 
         return Collections.emptyMap();
@@ -203,21 +250,34 @@ public class EngagementService {
                 .launchedDateTime(Instant.now()).build());
 
         LOGGER.debug("Launch ahoy {} -- {}", engagement.getUuid(), engagement.getState());
+        EngagementState previousState = engagement.getCurrentState();
+        String previousMessage = engagement.getLastMessage();
         engagement.setCurrentState(engagement.getState());
-        engagementRepository.update(engagement);
         engagement.setLastMessage(LAUNCH_MESSAGE);
 
-        bus.publish(UPDATE_ENGAGEMENT, engagement);
-        bus.publish(UPDATE_STATUS, engagement);
+        engagementRepository.update(engagement);
+        enqueueOrUndo(() -> {
+            outbox.enqueue(UPDATE_ENGAGEMENT, engagement);
+            outbox.enqueue(UPDATE_STATUS, engagement);
+        }, () -> {
+            engagement.setLaunch(null);
+            engagement.setCurrentState(previousState);
+            engagement.setLastMessage(previousMessage);
+            engagementRepository.update(engagement);
+        });
+        changeFeed.changed(engagement);
+        stateTransitionScheduler.schedule(engagement);
     }
 
     public void updateCount(String uuid, int count, String column) {
         engagementRepository.updateCount(uuid, count, column);
+        changeFeed.changed(uuid);
     }
 
     public void updateLastUpdate(String uuid) {
         LOGGER.debug("last update for {}", uuid);
         engagementRepository.updateLastUpdate(uuid, Instant.now());
+        changeFeed.changed(uuid);
     }
     
     public boolean update(Engagement engagement) {
@@ -257,24 +317,33 @@ public class EngagementService {
         if (diff.hasChanges() || initialFieldUpdated) {
             updated = true;
 
-            if(engagement.getCurrentState() != engagement.getState()) {
+            boolean stateChanged = engagement.getCurrentState() != engagement.getState();
+            if(stateChanged) {
                 engagement.setCurrentState(engagement.getState());
-                bus.publish(UPDATE_STATUS, engagement);
             }
 
-            engagementRepository.update(engagement);
-
             if (updateGitlab) {
                 engagement.setLastMessage(diff.prettyPrint());
-                bus.publish(UPDATE_ENGAGEMENT, engagement);
             }
+
+            engagementRepository.update(engagement);
+            enqueueOrUndo(() -> {
+                if(stateChanged) {
+                    outbox.enqueue(UPDATE_STATUS, engagement);
+                }
+                if(updateGitlab) {
+                    outbox.enqueue(UPDATE_ENGAGEMENT, engagement);
+                }
+            }, () -> engagementRepository.update(existing));
+            changeFeed.changed(engagement);
+            stateTransitionScheduler.schedule(engagement);
         }
 
         return updated;
     }
     
     public void delete(String uuid) {
-        Optional<Engagement> engagementOption = getEngagement(uuid);
+        Optional<Engagement> engagementOption = engagementRepository.getEngagement(uuid);
         
         if(engagementOption.isEmpty()) {
             throw new WebApplicationException(Status.NOT_FOUND);
@@ -288,28 +357,13 @@ public class EngagementService {
 
         categoryService.updateCategories(engagement, new HashSet<>());
         engagementRepository.delete(engagement);
-        
-        bus.publish(DELETE_ENGAGEMENT, engagement);
+        enqueueOrUndo(() -> outbox.enqueue(DELETE_ENGAGEMENT, engagement), () -> engagementRepository.persist(engagement));
+        changeFeed.changed(engagement);
+        stateTransitionScheduler.unschedule(uuid);
     }
 
     public Map<EngagementState, Integer> getEngagementCountByStatus(Instant currentTime, Set<String> regions, Set<String> types) {
-
-
-        List<Engagement> engagementList = regions.isEmpty() ? getEngagements() :
-            getEngagements(PageFilter.builder().page(0).pageSize(1000).build(), regions, types, Collections.emptySet());
-
-        Map<EngagementState, Integer> statusCounts = new EnumMap<>(EngagementState.class);
-
-        for (Engagement engagement : engagementList) {
-            EngagementState state = engagement.getState(currentTime);
-
-            int count = statusCounts.containsKey(state) ? statusCounts.get(state) + 1 : 1;
-            statusCounts.put(state, count);
-        }
-
-        statusCounts.put(EngagementState.ANY, engagementList.size());
-
-        return statusCounts;
+        return engagementRepository.countEngagementsByState(currentTime, regions, types);
     }
     
     public List<Engagement> getEngagements() {
@@ -321,13 +375,7 @@ public class EngagementService {
     }
 
     public List<Engagement> getEngagements(PageFilter pageFilter, Set<String> regions, Set<String> types, Set<EngagementState> inStates) {
-        List<Engagement> engagements = engagementRepository.getEngagements(pageFilter, regions, types);
-        if(inStates.isEmpty()) {
-            return engagements;
-        }
-
-        return filterEngagementsByState(engagements, inStates);
-
+        return engagementRepository.findEngagements(pageFilter, null, null, regions, types, inStates);
     }
 
     public List<Engagement> getEngagementsForUser(PageFilter pageFilter, String userEmail, Set<String> engagementUuids) {
@@ -342,8 +390,12 @@ public class EngagementService {
         return engagementRepository.findEngagements(pageFilter, input, category, regions, types, states);
     }
 
-    public List<Engagement> filterEngagementsByState(List<Engagement> engagements, Set<EngagementState> states) {
-        return engagements.stream().filter(e -> states.contains(e.getState())).collect(Collectors.toList());
+    public FindIterable<Engagement> streamEngagements(PageFilter pageFilter, String input, String category, Set<String> regions, Set<String> types, Set<EngagementState> states) {
+        return engagementRepository.streamEngagements(pageFilter, input, category, regions, types, states);
+    }
+
+    public Optional<String> getNextPageToken(PageFilter pageFilter, List<Engagement> page) {
+        return engagementRepository.getNextPageToken(pageFilter, page);
     }
 
     public List<Engagement> getEngagements(Set<EngagementState> states) {
@@ -363,12 +415,7 @@ public class EngagementService {
     }
     
     public List<Engagement> getEngagementsWithCategory(String category, PageFilter pageFilter, Set<String> regions, Set<String> types, Set<EngagementState> inStates) {
-        List<Engagement> engagements = engagementRepository.getEngagementsWithCategory(category, pageFilter, regions, types);
-        if(inStates.isEmpty()) {
-            return engagements;
-        }
-
-        return filterEngagementsByState(engagements, inStates);
+        return engagementRepository.findEngagements(pageFilter, null, category, regions, types, inStates);
     }
 
 
@@ -377,11 +424,36 @@ public class EngagementService {
     }
     
     public Optional<Engagement> getEngagement(String uuid) {
+        return engagementCache.get(uuid);
+    }
+
+    /**
+     * Reads past the cache. Use before a write so stale counts or project ids are not written back.
+     * @param uuid the engagement uuid
+     * @return the engagement as stored in the db
+     */
+    public Optional<Engagement> getEngagementForUpdate(String uuid) {
         return engagementRepository.getEngagement(uuid);
     }
 
+    public Optional<EntityTag> getEngagementTag(String uuid) {
+        return engagementCache.getEntityTag(uuid);
+    }
+
+    /**
+     * Tags list responses with the change version. Every write from any instance moves it.
+     * @return a tag that changes when any engagement list could have changed
+     */
+    public EntityTag getEngagementsTag() {
+        return new EntityTag("v" + changeFeed.getVersion());
+    }
+
+    public ChangeSet getChangesSince(long version) {
+        return changeFeed.getChangesSince(version);
+    }
+
     public Optional<Engagement> getEngagementByProject(int projectId) {
-        return engagementRepository.getEngagementByProject(projectId);
+        return engagementCache.getByProject(projectId);
     }
     
     public List<UseCase> getUseCases(PageFilter pageFilter, Set<String> regions) {
@@ -397,43 +469,132 @@ public class EngagementService {
     }
 
     public long refreshSelect(Set<String> uuids) {
-        int count = 0;
         LOGGER.debug("Refresh select ({})", uuids.size());
-        List<Engagement> engagements = gitlabService.getEngagements(uuids);
+        List<EngagementFiles> files = gitlabService.getEngagementFiles(uuids);
+        List<Engagement> engagements = new ArrayList<>();
+        Map<String, List<Category>> categories = new HashMap<>();
+        files.forEach(f -> {
+            engagements.add(f.getEngagement());
+            categories.put(f.getEngagement().getUuid(), f.getCategories() == null ? List.of() : f.getCategories());
+        });
+
         participantService.addEngagementCount(engagements);
         artifactService.addEngagementCount(engagements);
         activityService.getLastActivityPerEngagement(engagements);
 
-        for(Engagement e : engagements) {
-            engagementRepository.delete("uuid = ?1", e.getEngagementLeadEmail());
-            engagementRepository.persist(e);
-            count++;
-        }
+        engagementRepository.bulkUpsert(engagements);
+        changeFeed.changed(engagements);
+        stateTransitionScheduler.schedule(engagements);
+        categoryService.refresh(categories);
 
-        bus.publish(CategoryService.REFRESH_CATEGORIES, CategoryService.REFRESH_CATEGORIES);
-        return count;
+        return engagements.size();
     }
     
+    /**
+     * Re-reads the engagement and category files of projects that have had gitlab activity since the last sync.
+     * A sync without a checkpoint reads every project. Gitlab only moves a project's last activity about once an
+     * hour so projects active within sync.activity.overlap before the checkpoint are read again. Engagements with
+     * gitlab changes still in the outbox are skipped, the local copy is newer. Projects removed from gitlab are only
+     * detected by a full refresh.
+     * @return the number of engagements updated
+     */
+    public long syncChanges() {
+        SyncCheckpoint checkpoint = SyncCheckpoint.findByName(GITLAB_ACTIVITY_CHECKPOINT)
+                .orElseGet(() -> SyncCheckpoint.builder().name(GITLAB_ACTIVITY_CHECKPOINT).lastActivity(Instant.EPOCH).build());
+
+        List<Project> changed = gitlabService.getProjectsChangedSince(checkpoint.getLastActivity().minus(activityOverlap));
+        if(changed.isEmpty()) {
+            return 0;
+        }
+
+        Instant latest = checkpoint.getLastActivity();
+        List<Engagement> engagements = new ArrayList<>();
+        Map<String, List<Category>> categories = new HashMap<>();
+
+        for(Project p : changed) {
+            Optional<Engagement> engagement = gitlabService.getEngagement(p.getId());
+            if(engagement.isPresent()) {
+                Engagement e = engagement.get();
+                e.setCurrentState(e.getState());
+                engagements.add(e);
+                gitlabService.getCategories(p.getId()).ifPresent(c -> categories.put(e.getUuid(), c));
+            }
+
+            if(p.getLastActivityAt() != null && p.getLastActivityAt().toInstant().isAfter(latest)) {
+                latest = p.getLastActivityAt().toInstant();
+            }
+        }
+
+        Set<String> pending = outbox.getPendingEngagementUuids(engagements.stream().map(Engagement::getUuid).collect(Collectors.toList()));
+        if(!pending.isEmpty()) {
+            LOGGER.debug("Skipping {} engagements with outbox entries pending", pending.size());
+            engagements.removeIf(e -> pending.contains(e.getUuid()));
+            pending.forEach(categories::remove);
+        }
+
+        if(!engagements.isEmpty()) {
+            participantService.addEngagementCount(engagements);
+            artifactService.addEngagementCount(engagements);
+            activityService.getLastActivityPerEngagement(engagements);
+        }
+
+        engagementRepository.bulkUpsert(engagements);
+        changeFeed.changed(engagements);
+        stateTransitionScheduler.schedule(engagements);
+        categoryService.refresh(categories);
+
+        checkpoint.setLastActivity(latest);
+        checkpoint.persistOrUpdate();
+
+        LOGGER.info("Synced {} engagements from {} changed projects. Checkpoint {}", engagements.size(), changed.size(), latest);
+        return engagements.size();
+    }
+
     public long refresh() {
         LOGGER.debug("Refresh");
-        List<Engagement> engagements = gitlabService.getEngagements();
+        Instant start = Instant.now();
+        Map<String, List<Category>> storedCategories = categoryService.getCategoriesByEngagement();
+        Map<Integer, EngagementFiles> stored = new HashMap<>();
+        engagementRepository.listAll().forEach(e -> stored.put(e.getProjectId(), new EngagementFiles(e, storedCategories.get(e.getUuid()))));
+
+        List<EngagementFiles> files = gitlabService.getEngagementFiles(stored);
+        List<Engagement> engagements = new ArrayList<>();
+        List<Category> categories = new ArrayList<>();
+        AtomicInteger unchanged = new AtomicInteger();
+        files.forEach(f -> {
+            if(stored.get(f.getEngagement().getProjectId()) == f) {
+                unchanged.incrementAndGet();
+            }
+            engagements.add(f.getEngagement());
+            if(f.getCategories() != null) {
+                categories.addAll(f.getCategories());
+            }
+        });
+
         engagements.forEach(e -> e.setCurrentState(e.getState()));
         participantService.addEngagementCount(engagements);
         artifactService.addEngagementCount(engagements);
         activityService.getLastActivityPerEngagement(engagements);
 
-        long purged = engagementRepository.purge();
-        LOGGER.info("Purged {} engagements", purged);
-        engagementRepository.persistAll(engagements);
+        engagementRepository.replaceAll(engagements);
+        categoryService.replaceAll(categories);
+        changeFeed.reset();
+        stateTransitionScheduler.rebuild();
+        recordSyncCheckpoint(start);
         long count = engagementRepository.count();
-        LOGGER.info("Refreshed {} engagements", count);
-        
-        bus.publish(CategoryService.REFRESH_CATEGORIES, CategoryService.REFRESH_CATEGORIES);
+        LOGGER.info("Refreshed {} engagements ({} unchanged in gitlab) and {} categories", count, unchanged.get(), categories.size());
         
         return count;
         
     }
     
+    private void recordSyncCheckpoint(Instant lastActivity) {
+        SyncCheckpoint checkpoint = SyncCheckpoint.findByName(GITLAB_ACTIVITY_CHECKPOINT)
+                .orElseGet(() -> SyncCheckpoint.builder().name(GITLAB_ACTIVITY_CHECKPOINT).build());
+        checkpoint.setLastActivity(lastActivity);
+        checkpoint.persistOrUpdate();
+    }
+
     /**
      * If no changes (javers) - don't bother
      * if no uuid then it's new
@@ -441,6 +602,22 @@ public class EngagementService {
      * @param engagement update this engagement's use cases
      * @param existing compare against existing
      */
+    /**
+     * Gitlab changes are queued after the mongo write they belong to, so a write mongo rejects (a duplicate name)
+     * never reaches gitlab. If queueing fails the write is undone and the error is passed on
+     * @param enqueue queues the gitlab changes
+     * @param undo puts the mongo write back
+     */
+    private void enqueueOrUndo(Runnable enqueue, Runnable undo) {
+        try {
+            enqueue.run();
+        } catch (RuntimeException e) {
+            LOGGER.error("Unable to queue gitlab changes. Undoing the database write", e);
+            undo.run();
+            throw e;
+        }
+    }
+
     private void updateUseCases(Engagement engagement, Engagement existing) {
         Diff diff = javers.compareCollections(existing.getUseCases(), engagement.getUseCases(), UseCase.class);
         
@@ -1,35 +1,49 @@
 package com.redhat.labs.lodestar.engagements.service;
 
+import java.time.Instant;
 import java.util.*;
 
 import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 
-import com.google.gson.*;
 import com.redhat.labs.lodestar.engagements.model.EngagementState;
-import com.redhat.labs.lodestar.engagements.utils.JsonMarshaller;
+import com.redhat.labs.lodestar.engagements.utils.LegacyJsonWriter;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.gitlab4j.api.models.Group;
 import org.gitlab4j.api.models.Project;
+import org.gitlab4j.api.models.RepositoryFile;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.redhat.labs.lodestar.engagements.utils.GitLabPathUtils;
 import com.redhat.labs.lodestar.engagements.exception.EngagementException;
+import com.redhat.labs.lodestar.engagements.exception.EngagementGitlabException;
 import com.redhat.labs.lodestar.engagements.model.Category;
 import com.redhat.labs.lodestar.engagements.model.Engagement;
+import com.redhat.labs.lodestar.engagements.model.EngagementFiles;
+import com.redhat.labs.lodestar.engagements.model.LegacyEngagement;
 import com.redhat.labs.lodestar.engagements.rest.client.GitlabApiClient;
+import com.redhat.labs.lodestar.engagements.rest.client.GitlabRateLimiter;
 
 import io.quarkus.vertx.ConsumeEvent;
+import io.vertx.core.json.JsonObject;
+import io.vertx.mutiny.core.eventbus.EventBus;
 
 @ApplicationScoped
 public class GitlabService {
     private static final Logger LOGGER = LoggerFactory.getLogger(GitlabService.class);
+
+    public static final String LEGACY_PUSHED = "legacy.pushed.event";
+    private static final String PROJECT_ID = "projectId";
+    private static final String AFTER = "after";
     
     @Inject
     EngagementService engagementService;
 
+    @Inject
+    EventBus bus;
+
     @Inject
     CategoryService categoryService;
 
@@ -37,10 +51,10 @@ public class GitlabService {
     GitlabApiClient gitlabApiClient;
 
     @Inject
-    JsonMarshaller json;
+    GitlabRateLimiter rateLimiter;
 
-    @ConfigProperty(name = "disable.refresh.bus")
-    boolean disableBus;
+    @Inject
+    LegacyJsonWriter legacyJsonWriter;
 
     @ConfigProperty(name = "lodestar.tag")
     String lodestarTag;
@@ -48,8 +62,6 @@ public class GitlabService {
     @ConfigProperty(name = "lodestar.tag.format")
     String lodestarTagFormat;
 
-    Gson gson = new GsonBuilder().setPrettyPrinting().create();
-
     List<String> statusPossibilities;
 
     @PostConstruct
@@ -71,7 +83,6 @@ public class GitlabService {
      *   - deploy keys
      * @param engagement create this
      */
-    @ConsumeEvent(value = EngagementService.CREATE_ENGAGEMENT, blocking = true)
     public void createEngagementInGitlab(Engagement engagement) {
         LOGGER.debug("E {}", engagement);
         
@@ -100,14 +111,18 @@ public class GitlabService {
      * Only used when a failure occurred and the project was created but the files were not.
      * @param engagement
      */
-    @ConsumeEvent(value = EngagementService.CREATE_ENGAGEMENT_FILES, blocking = true)
     public void createEngagementFiles(Engagement engagement) {
         createEngagementFilesInGitlab(engagement);
     }
 
     private void createEngagementFilesInGitlab(Engagement engagement) {
-        String legacy = this.createLegacyJson(engagement);
-        gitlabApiClient.createEngagementFiles(engagement, legacy);
+        String legacy = legacyJsonWriter.write(engagement, Collections.emptyMap());
+        String commitId = gitlabApiClient.createEngagementFiles(engagement, legacy);
+
+        LegacyEngagement cached = LegacyEngagement.findByProjectId(engagement.getProjectId())
+                .orElseGet(() -> LegacyEngagement.builder().projectId(engagement.getProjectId()).build());
+        cached.setPreserved(new HashMap<>());
+        cacheLegacy(cached, commitId);
     }
     
     /**
@@ -117,7 +132,6 @@ public class GitlabService {
      *  
      * @param engagement update this
      */
-    @ConsumeEvent(value = EngagementService.UPDATE_ENGAGEMENT, blocking = true)
     public void updateEngagementInGitlab(Engagement engagement) {
         LOGGER.debug("Gitlab engagement update - {}", engagement);
 
@@ -139,13 +153,11 @@ public class GitlabService {
             LOGGER.debug("path did not change");
         }
 
-        String legacy = updateLegacyJson(engagement);
-        gitlabApiClient.updateEngagementFile(engagement, legacy);
+        updateEngagementFile(engagement);
         engagementService.update(engagement, false);
 
     }
     
-    @ConsumeEvent(value = EngagementService.DELETE_ENGAGEMENT, blocking = true)
     public void deleteEngagementInGitlab(Engagement engagement) {
         Optional<Group> engagementGroupOption = gitlabApiClient.getGroup(engagement);
         
@@ -161,33 +173,32 @@ public class GitlabService {
         } else {
             gitlabApiClient.deleteGroup(engagement);
         }
-            
+
+        LegacyEngagement.deleteByProjectId(engagement.getProjectId());
     }
     
-    @ConsumeEvent(value = CategoryService.MERGE_CATEGORIES, blocking = true)
     public void updateCategoriesInGitlab(Engagement engagement) {
         LOGGER.debug("category update for {}", engagement.getUuid());
         List<Category> categories = categoryService.getCategories(engagement.getUuid());
         gitlabApiClient.updateCategories(engagement, categories);
     }
     
-    @ConsumeEvent(value = CategoryService.REFRESH_CATEGORIES, blocking = true)
-    public void refreshCategories(String message) {
-        LOGGER.debug("{}", message);
-        if (!disableBus) {
-            refreshCategories();
-        }
-    }
-
     @ConsumeEvent(value = ConfigService.UPDATE_ALL_WEBHOOKS, blocking = true)
     public void updateWebhooks(String message) {
         LOGGER.debug("{}", message);
         List<Engagement> engagements = engagementService.getEngagements();
-        engagements.forEach(this::updateWebhook);
+        rateLimiter.bulk(() -> engagements.forEach(this::updateWebhook));
     }
 
-    @ConsumeEvent(value = EngagementService.UPDATE_STATUS, blocking = true)
+    /**
+     * Status changes come from sweeps over many engagements so they run as bulk gitlab calls
+     * @param engagement update the status topic of this engagement's project
+     */
     public void updateStatus(Engagement engagement) {
+        rateLimiter.bulk(() -> updateProjectStatus(engagement));
+    }
+
+    private void updateProjectStatus(Engagement engagement) {
         Optional<Project> p = gitlabApiClient.getProject(engagement.getProjectId());
         if(p.isPresent()) {
             List<String> tags = p.get().getTagList();
@@ -222,19 +233,41 @@ public class GitlabService {
         return gitlabApiClient.getEngagement(projectId).isPresent();
     }
 
+    /**
+     * Reloads the categories of every engagement in the database. Readers see the old categories until the new
+     * set is loaded. A refresh already reloads categories along with engagements
+     */
     public void refreshCategories() {
+        List<Category> categories = new ArrayList<>();
+        rateLimiter.bulk(() -> engagementService.getEngagements()
+                .forEach(e -> gitlabApiClient.getCategories(e.getProjectId()).ifPresent(categories::addAll)));
 
-        categoryService.purge();
-        long categoryCount = gitlabApiClient.refreshCategories(engagementService.getEngagements());
-        LOGGER.debug("Added {} categories", categoryCount);
+        categoryService.replaceAll(categories);
+        LOGGER.debug("Added {} categories", categories.size());
     }
     
-    public List<Engagement> getEngagements() {
-        return getEngagements(Collections.emptySet());
+    /**
+     * Reads the files of every engagement project. Stored engagements whose files are unchanged are reused
+     * @param stored engagements (with their categories) as last read, by project id
+     */
+    public List<EngagementFiles> getEngagementFiles(Map<Integer, EngagementFiles> stored) {
+        return rateLimiter.bulk(() -> gitlabApiClient.getEngagementFiles(Collections.emptySet(), stored));
+    }
+
+    public List<EngagementFiles> getEngagementFiles(Set<String> uuids) {
+        return rateLimiter.bulk(() -> gitlabApiClient.getEngagementFiles(uuids, Collections.emptyMap()));
+    }
+
+    public List<Project> getProjectsChangedSince(Instant since) {
+        return rateLimiter.bulk(() -> gitlabApiClient.getProjectsChangedSince(since));
     }
 
-    public List<Engagement> getEngagements(Set<String> uuids) {
-        return gitlabApiClient.getEngagements(uuids);
+    public Optional<Engagement> getEngagement(int projectId) {
+        return rateLimiter.bulk(() -> gitlabApiClient.getEngagement(projectId));
+    }
+
+    public Optional<List<Category>> getCategories(int projectId) {
+        return rateLimiter.bulk(() -> gitlabApiClient.getCategories(projectId));
     }
 
     private void updateWebhook(Engagement engagement) {
@@ -318,56 +351,98 @@ public class GitlabService {
         }
     }
     
-    private String createLegacyJson(Engagement e) {
-        return getLegacyJson(e, new JsonObject());
-    }
+    /**
+     * Commits the engagement and legacy files. The legacy subtrees come from the cache when there is an entry, checked
+     * by gitlab against the cached commit. If the legacy file has changed since, it is read and the commit retried once
+     */
+    private void updateEngagementFile(Engagement engagement) {
+        Optional<LegacyEngagement> cachedOption = LegacyEngagement.findByProjectId(engagement.getProjectId());
+        LegacyEngagement cached = cachedOption.orElseGet(() -> readLegacy(engagement.getProjectId()));
+
+        String commitId;
+        try {
+            commitId = gitlabApiClient.updateEngagementFile(engagement, legacyJsonWriter.write(engagement,
+                    legacyJsonWriter.fromJson(cached.getPreserved())), cached.getLastCommitId());
+        } catch (EngagementGitlabException e) {
+            if(cachedOption.isEmpty() || e.getStatusCode() != 400) {
+                throw e;
+            }
 
-    private String updateLegacyJson(Engagement e) {
-        String legacy = gitlabApiClient.getLegacyEngagement(e.getProjectId());
+            LOGGER.debug("Legacy file for project {} changed after commit {}. Reading it again", engagement.getProjectId(), cached.getLastCommitId());
+            cached = readLegacy(engagement.getProjectId());
+            commitId = gitlabApiClient.updateEngagementFile(engagement, legacyJsonWriter.write(engagement,
+                    legacyJsonWriter.fromJson(cached.getPreserved())), cached.getLastCommitId());
+        }
 
-        JsonElement legacyElement = gson.fromJson(legacy, JsonElement.class);
-        JsonObject legacyJsonObject = legacyElement.getAsJsonObject();
-        return getLegacyJson(e, legacyJsonObject);
+        cacheLegacy(cached, commitId);
     }
 
-    String getLegacyJson(Engagement e, JsonObject legacyJsonObject) {
-
-        String v2 = json.toJson(e);
-        JsonElement v2element = gson.fromJson(v2, JsonElement.class);
-        JsonObject v2FullObject = v2element.getAsJsonObject();
+    /**
+     * @param ref the ref a push was to
+     * @param paths the files the push added, modified or removed. Null if not known
+     * @return true if the push changed (or may have changed) the legacy engagement.json on the engagement branch
+     */
+    public boolean isLegacyFileChange(String ref, Set<String> paths) {
+        return gitlabApiClient.isLegacyFileChange(ref, paths);
+    }
 
-        addElement("hosting_environments", legacyJsonObject, v2FullObject );
-        addElement("engagement_users", legacyJsonObject, v2FullObject );
-        addElement("artifacts", legacyJsonObject, v2FullObject );
-        renameElement("type", "engagement_type", v2FullObject);
-        renameElement("region", "engagement_region", v2FullObject);
-        renameElement("name", "project_name", v2FullObject);
-        v2FullObject.remove("participant_count");
-        v2FullObject.remove("hosting_count");
-        v2FullObject.remove("artifact_count");
-        v2FullObject.remove("last_message");
+    /**
+     * Runs {@link #refreshLegacy(int, String)} off the request thread so the webhook answers gitlab straight away
+     */
+    public void queueRefreshLegacy(int projectId, String after) {
+        bus.send(LEGACY_PUSHED, new JsonObject().put(PROJECT_ID, projectId).put(AFTER, after));
+    }
 
-        //sort for readability on commit
-        JsonObject sorted = new JsonObject();
-        v2FullObject.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(es -> sorted.add(es.getKey(), es.getValue()));
+    @ConsumeEvent(value = LEGACY_PUSHED, blocking = true)
+    void legacyPushed(JsonObject push) {
+        try {
+            refreshLegacy(push.getInteger(PROJECT_ID), push.getString(AFTER));
+        } catch (RuntimeException e) {
+            LOGGER.error("Unable to refresh legacy file for project {}", push.getInteger(PROJECT_ID), e);
+        }
+    }
 
-        LOGGER.debug("render {}", gson.toJson(sorted));
+    /**
+     * Re-reads the cached legacy subtrees of a project after a push changed its legacy file. A push of the cached
+     * commit is the result of an update here and is skipped
+     * @param projectId the project pushed to
+     * @param after the commit the branch is at after the push
+     */
+    public void refreshLegacy(int projectId, String after) {
+        Optional<LegacyEngagement> cached = LegacyEngagement.findByProjectId(projectId);
+        if(cached.isPresent() && after != null && after.equals(cached.get().getLastCommitId())) {
+            LOGGER.debug("Legacy file for project {} is current at {}", projectId, after);
+            return;
+        }
 
-        return gson.toJson(sorted);
+        LegacyEngagement legacy = rateLimiter.bulk(() -> readLegacy(projectId));
+        legacy.setUpdated(Instant.now());
+        legacy.persistOrUpdate();
+        LOGGER.debug("Legacy file for project {} cached at {}", projectId, legacy.getLastCommitId());
     }
 
-    void addElement(String elementName, JsonObject existing, JsonObject newValues) {
-        //GET
-        JsonElement hostingElement = existing.get(elementName);
-        //ADD
-        newValues.add(elementName, hostingElement);
+    private LegacyEngagement readLegacy(int projectId) {
+        Optional<RepositoryFile> file = gitlabApiClient.getLegacyEngagement(projectId);
+
+        LegacyEngagement legacy = LegacyEngagement.findByProjectId(projectId)
+                .orElseGet(() -> LegacyEngagement.builder().projectId(projectId).build());
+        legacy.setLastCommitId(file.map(RepositoryFile::getLastCommitId).orElse(null));
+        legacy.setPreserved(legacyJsonWriter.toJson(legacyJsonWriter.readPreserved(file.map(RepositoryFile::getContent).orElse(null))));
+        return legacy;
     }
 
-    void renameElement(String elementName, String newElementName, JsonObject newValues) {
-        //GET
-        JsonElement hostingElement = newValues.get(elementName);
-        //ADD
-        newValues.add(newElementName, hostingElement);
+    /**
+     * A null commit id would read as a missing legacy file, so without one the entry is dropped and read again
+     */
+    private void cacheLegacy(LegacyEngagement legacy, String commitId) {
+        if(commitId == null) {
+            LegacyEngagement.deleteByProjectId(legacy.getProjectId());
+            return;
+        }
+
+        legacy.setLastCommitId(commitId);
+        legacy.setUpdated(Instant.now());
+        legacy.persistOrUpdate();
     }
 
 }
@@ -0,0 +1,190 @@
+package com.redhat.labs.lodestar.engagements.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.bson.conversions.Bson;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
+import com.redhat.labs.lodestar.engagements.model.Lease;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.scheduler.Scheduled;
+
+/**
+ * Runs scheduled jobs on one instance at a time. Each job has a lease in mongo. The instance that holds it runs
+ * the job, the others skip it. Held leases are renewed in the background so the same instance keeps running a job
+ * until it stops or stalls past the ttl.
+ */
+@ApplicationScoped
+public class LeaseService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LeaseService.class);
+
+    private static final String NAME = "name";
+    private static final String OWNER = "owner";
+    private static final String TOKEN = "token";
+    private static final String EXPIRES = "expires";
+
+    @ConfigProperty(name = "lease.ttl")
+    Duration ttl;
+
+    @Inject
+    MeterRegistry registry;
+
+    private final String owner = Optional.ofNullable(System.getenv("HOSTNAME")).orElse("local") + "-" + UUID.randomUUID();
+
+    /**
+     * Lease name mapped to the lease as last acquired or renewed by this instance
+     */
+    private final Map<String, Lease> held = new ConcurrentHashMap<>();
+    private final Map<String, Counter> skipped = new ConcurrentHashMap<>();
+
+    /**
+     * @param name the lease, one per job
+     * @param job run only if this instance holds the lease
+     * @return true if the job was run
+     */
+    public boolean runIfLeader(String name, Runnable job) {
+        if(!acquire(name)) {
+            skipped.computeIfAbsent(name, n -> registry.counter("lease.skipped", Tags.of(NAME, n))).increment();
+            LOGGER.debug("Lease {} is held by another instance. Skipping", name);
+            return false;
+        }
+
+        job.run();
+        return true;
+    }
+
+    /**
+     * Renews the lease if this instance holds it, otherwise takes it if it has expired
+     * @return true if this instance holds the lease until at least ttl from now
+     */
+    public boolean acquire(String name) {
+        Instant now = Instant.now();
+        Lease current = held.get(name);
+
+        try {
+            Lease lease = current == null ? null : renew(current, now);
+
+            if(lease == null) {
+                lease = takeOver(name, now);
+            }
+
+            if(lease == null) {
+                held.remove(name);
+                return false;
+            }
+
+            if(current == null || current.getToken() != lease.getToken()) {
+                LOGGER.info("Acquired lease {} with token {}", name, lease.getToken());
+                registerGauges(name);
+            }
+
+            held.put(name, lease);
+            return true;
+        } catch (MongoException e) {
+            LOGGER.error("Unable to acquire lease {}", name, e);
+            held.remove(name);
+            return false;
+        }
+    }
+
+    /**
+     * @return the fencing token of the lease if this instance holds it
+     */
+    public Optional<Long> getToken(String name) {
+        Lease lease = held.get(name);
+        return lease == null || lease.getExpires().isBefore(Instant.now()) ? Optional.empty() : Optional.of(lease.getToken());
+    }
+
+    @Scheduled(every = "{lease.renew.every}")
+    void renewHeld() {
+        held.keySet().forEach(this::acquire);
+    }
+
+    void onStop(@Observes ShutdownEvent event) {
+        held.values().forEach(this::release);
+        held.clear();
+    }
+
+    private Lease renew(Lease lease, Instant now) {
+        Bson filter = Filters.and(Filters.eq(NAME, lease.getName()), Filters.eq(OWNER, owner), Filters.eq(TOKEN, lease.getToken()));
+        return collection().findOneAndUpdate(filter, Updates.set(EXPIRES, now.plus(ttl)), after(false));
+    }
+
+    /**
+     * The filter only matches an expired lease. If the lease does not exist the upsert creates it. If another
+     * instance holds it the upsert collides with the unique name index
+     */
+    private Lease takeOver(String name, Instant now) {
+        Bson filter = Filters.and(Filters.eq(NAME, name), Filters.lte(EXPIRES, now));
+        Bson update = Updates.combine(Updates.set(OWNER, owner), Updates.set("acquired", now), Updates.set(EXPIRES, now.plus(ttl)),
+                Updates.inc(TOKEN, 1L));
+
+        try {
+            return collection().findOneAndUpdate(filter, update, after(true));
+        } catch (MongoCommandException e) {
+            if(ErrorCategory.fromErrorCode(e.getErrorCode()) == ErrorCategory.DUPLICATE_KEY) {
+                return null;
+            }
+            throw e;
+        } catch (MongoWriteException e) {
+            if(e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Expires the lease now so another instance can take it without waiting out the ttl
+     */
+    private void release(Lease lease) {
+        if(lease == null) {
+            return;
+        }
+
+        try {
+            collection().updateOne(Filters.and(Filters.eq(NAME, lease.getName()), Filters.eq(OWNER, owner), Filters.eq(TOKEN, lease.getToken())),
+                    Updates.set(EXPIRES, Instant.now()));
+        } catch (MongoException e) {
+            LOGGER.warn("Unable to release lease {}", lease.getName(), e);
+        }
+    }
+
+    private void registerGauges(String name) {
+        Tags tags = Tags.of(NAME, name);
+        registry.gauge("lease.held", tags, this, s -> s.getToken(name).isPresent() ? 1 : 0);
+        registry.gauge("lease.token", tags, this, s -> s.getToken(name).orElse(0L));
+    }
+
+    private static FindOneAndUpdateOptions after(boolean upsert) {
+        return new FindOneAndUpdateOptions().upsert(upsert).returnDocument(ReturnDocument.AFTER);
+    }
+
+    private static MongoCollection<Lease> collection() {
+        return Lease.<Lease>mongoCollection();
+    }
+}
@@ -0,0 +1,183 @@
+package com.redhat.labs.lodestar.engagements.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWrapper;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import com.redhat.labs.lodestar.engagements.model.Engagement;
+import com.redhat.labs.lodestar.engagements.model.OutboxEntry;
+import com.redhat.labs.lodestar.engagements.model.OutboxEntry.Status;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.vertx.mutiny.core.Vertx;
+
+/**
+ * Gitlab side effects are written here after the engagement is written to mongo and made by the
+ * {@link OutboxDispatcher} afterwards, so a write mongo rejects, such as a duplicate name, never reaches gitlab. If
+ * the entry cannot be written the mongo write is undone. A gitlab failure leaves the entry in place to be retried.
+ * A crash between the two writes leaves gitlab behind mongo until the engagement is resent to gitlab.
+ *
+ * Engagement file updates are held for the coalesce window. Further updates to the same engagement in that time
+ * replace the held copy and add their message to its commit message, so a burst of edits is one commit. Other
+ * entries for an engagement are not due before its held update. The {@link OutboxDispatcher} keeps the rest of
+ * an engagement's changes in order, including behind entries that are being retried.
+ */
+@ApplicationScoped
+public class Outbox {
+
+    static final String STATUS = "status";
+    static final String CREATED = "created";
+    static final String DUE = "due";
+    private static final String ENGAGEMENT_UUID = "engagementUuid";
+
+    @ConfigProperty(name = "outbox.coalesce.window")
+    Duration coalesceWindow;
+
+    @Inject
+    OutboxDispatcher dispatcher;
+
+    @Inject
+    MeterRegistry registry;
+
+    @Inject
+    Vertx vertx;
+
+    @PostConstruct
+    void registerMetrics() {
+        for(Status status : Status.values()) {
+            registry.gauge("outbox.depth", Tags.of(STATUS, status.name()), this, o -> o.count(status));
+        }
+        registry.gauge("outbox.oldest.age.seconds", this, o -> o.getOldestPendingAge().getSeconds());
+    }
+
+    public void enqueue(String type, Engagement engagement) {
+        Instant now = Instant.now();
+        Optional<OutboxEntry> latest = findLatest(engagement.getUuid());
+        boolean coalesce = EngagementService.UPDATE_ENGAGEMENT.equals(type) && !coalesceWindow.isZero();
+
+        if(coalesce && latest.isPresent() && merge(latest.get(), engagement)) {
+            registry.counter("outbox.coalesced").increment();
+            return;
+        }
+
+        OutboxEntry entry = entry(type, engagement, now);
+        if(coalesce) {
+            entry.setDue(now.plus(coalesceWindow));
+        }
+
+        // keep behind a held update. The dispatcher holds it behind any other earlier entry
+        latest.filter(l -> l.getStatus() == Status.PENDING && l.getAttempts() == 0).map(OutboxEntry::getDue)
+                .filter(due -> due.isAfter(entry.getDue())).ifPresent(entry::setDue);
+
+        collection().insertOne(entry);
+
+        long delay = Duration.between(now, entry.getDue()).toMillis();
+        if(delay > 0) {
+            vertx.setTimer(delay, id -> dispatcher.kick());
+        } else {
+            dispatcher.kick();
+        }
+    }
+
+    /**
+     * Folds an update into the latest entry if that entry is an engagement update no worker has taken yet. The
+     * copy is replaced and the messages are joined in one update so a worker cannot claim the entry half merged
+     * @return true if the update was merged
+     */
+    boolean merge(OutboxEntry latest, Engagement engagement) {
+        if(!EngagementService.UPDATE_ENGAGEMENT.equals(latest.getType()) || latest.getStatus() != Status.PENDING) {
+            return false;
+        }
+
+        BsonDocument copy = BsonDocumentWrapper.asBsonDocument(engagement, collection().getCodecRegistry());
+        String message = engagement.getLastMessage() == null ? "" : engagement.getLastMessage();
+
+        Document joined = new Document("$trim", new Document("input", new Document("$concat", List.of(
+                new Document("$ifNull", List.of("$engagement.lastMessage", "")), "\n", new Document("$literal", message)))));
+        Document set = new Document("$set", new Document("engagement", new Document("$mergeObjects", List.of(
+                new Document("$literal", copy), new Document("lastMessage", joined))))
+                .append("coalesced", new Document("$add", List.of(new Document("$ifNull", List.of("$coalesced", 0)), 1))));
+
+        Bson filter = Filters.and(Filters.eq("_id", latest.id), Filters.eq(STATUS, Status.PENDING.name()));
+        return collection().updateOne(filter, List.of(set)).getModifiedCount() == 1;
+    }
+
+    /**
+     * Status updates only tag the project so they are not ordered with the engagement's other changes
+     * @return the most recent entry for the engagement that is still to be made
+     */
+    private Optional<OutboxEntry> findLatest(String uuid) {
+        Bson filter = Filters.and(Filters.eq(ENGAGEMENT_UUID, uuid), Filters.in(STATUS, Status.PENDING.name(), Status.IN_PROGRESS.name()),
+                Filters.ne("type", EngagementService.UPDATE_STATUS));
+        return Optional.ofNullable(collection().find(filter).sort(Sorts.descending(CREATED)).first());
+    }
+
+    public void enqueue(String type, Collection<Engagement> engagements) {
+        if(engagements.isEmpty()) {
+            return;
+        }
+
+        Instant now = Instant.now();
+        List<OutboxEntry> entries = new ArrayList<>();
+        engagements.forEach(e -> entries.add(entry(type, e, now)));
+
+        collection().insertMany(entries);
+        dispatcher.kick();
+    }
+
+    /**
+     * @param uuids engagements to check
+     * @return those with engagement changes (not status updates) pending or in progress
+     */
+    public Set<String> getPendingEngagementUuids(Collection<String> uuids) {
+        Set<String> pending = new HashSet<>();
+        if(uuids.isEmpty()) {
+            return pending;
+        }
+
+        Bson filter = Filters.and(Filters.in(ENGAGEMENT_UUID, uuids), Filters.in(STATUS, Status.PENDING.name(), Status.IN_PROGRESS.name()),
+                Filters.ne("type", EngagementService.UPDATE_STATUS));
+        collection().distinct(ENGAGEMENT_UUID, filter, String.class).into(pending);
+        return pending;
+    }
+
+    public long count(Status status) {
+        return collection().countDocuments(Filters.eq(STATUS, status.name()));
+    }
+
+    /**
+     * @return how long the oldest entry not yet dead has been waiting. Zero if there is none
+     */
+    public Duration getOldestPendingAge() {
+        OutboxEntry oldest = collection().find(Filters.in(STATUS, Status.PENDING.name(), Status.IN_PROGRESS.name())).sort(Sorts.ascending(CREATED)).first();
+        return oldest == null ? Duration.ZERO : Duration.between(oldest.getCreated(), Instant.now());
+    }
+
+    private OutboxEntry entry(String type, Engagement engagement, Instant now) {
+        return OutboxEntry.builder().type(type).engagementUuid(engagement.getUuid()).engagement(engagement)
+                .status(Status.PENDING).created(now).due(now).build();
+    }
+
+    static MongoCollection<OutboxEntry> collection() {
+        return OutboxEntry.<OutboxEntry>mongoCollection();
+    }
+}
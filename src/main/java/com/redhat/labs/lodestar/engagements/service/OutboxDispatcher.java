@@ -0,0 +1,318 @@
+package com.redhat.labs.lodestar.engagements.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.bson.conversions.Bson;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import com.redhat.labs.lodestar.engagements.model.Engagement;
+import com.redhat.labs.lodestar.engagements.model.OutboxEntry;
+import com.redhat.labs.lodestar.engagements.model.OutboxEntry.Status;
+import com.redhat.labs.lodestar.engagements.utils.KeyedExecutor;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.scheduler.Scheduled;
+
+/**
+ * Makes the gitlab changes written to the {@link Outbox}. Any instance may take an entry. A claim is a single
+ * atomic update so two instances never take the same entry, and a claim that is not finished in time (the
+ * instance died) is taken again. Entries run on a lane per engagement so one engagement's gitlab changes never
+ * race each other and a slow one does not hold up the rest. Failures are retried with exponential backoff. After the last attempt the entry is marked
+ * dead and left for an operator.
+ * <p>
+ * An engagement's changes are made in the order they were written. An entry is only made once every earlier entry
+ * for the engagement, other than status updates, is done or dead. Until then it is blocked.
+ */
+@ApplicationScoped
+public class OutboxDispatcher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(OutboxDispatcher.class);
+
+    private static final int MAX_ERROR_LENGTH = 1000;
+    private static final String OWNER = "owner";
+    private static final String ATTEMPTS = "attempts";
+    private static final String ENGAGEMENT_UUID = "engagementUuid";
+    private static final String BLOCKED = "blocked";
+    private static final Duration RELEASE_DELAY = Duration.ofSeconds(1);
+
+    @ConfigProperty(name = "outbox.lanes")
+    int laneCount;
+
+    @ConfigProperty(name = "outbox.lane.queue.size")
+    int laneQueueSize;
+
+    @ConfigProperty(name = "outbox.max.attempts")
+    int maxAttempts;
+
+    @ConfigProperty(name = "outbox.backoff.initial")
+    Duration initialBackoff;
+
+    @ConfigProperty(name = "outbox.backoff.max")
+    Duration maxBackoff;
+
+    @ConfigProperty(name = "outbox.claim.ttl")
+    Duration claimTtl;
+
+    @Inject
+    GitlabService gitlabService;
+
+    @Inject
+    MeterRegistry registry;
+
+    private final String owner = Optional.ofNullable(System.getenv("HOSTNAME")).orElse("local") + "-" + UUID.randomUUID();
+    private final AtomicBoolean kicked = new AtomicBoolean();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private ExecutorService claimer;
+    private KeyedExecutor lanes;
+    private volatile boolean running = true;
+
+    @PostConstruct
+    void createWorkers() {
+        claimer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "outbox-claimer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        lanes = new KeyedExecutor("outbox.lane", laneCount, laneQueueSize, registry);
+    }
+
+    void onStop(@Observes ShutdownEvent event) {
+        running = false;
+        claimer.shutdown();
+        lanes.shutdown();
+    }
+
+    /**
+     * Asks the claimer to look for due entries. Kicks while it is busy make it look again when it finishes
+     */
+    public void kick() {
+        kicked.set(true);
+
+        if(running && draining.compareAndSet(false, true)) {
+            claimer.submit(this::drain);
+        }
+    }
+
+    /**
+     * Picks up retries that have come due and entries left behind by other instances
+     */
+    @Scheduled(every = "{outbox.poll.every}")
+    void poll() {
+        kick();
+    }
+
+    private void drain() {
+        try {
+            while(running && kicked.getAndSet(false)) {
+                claimAll();
+            }
+        } catch (MongoException e) {
+            LOGGER.error("Unable to read outbox", e);
+        } finally {
+            draining.set(false);
+        }
+
+        if(kicked.get()) { //kicked after the last look but before draining was cleared
+            kick();
+        }
+    }
+
+    /**
+     * Entries are claimed in due order by this one thread and handed to the lane for their engagement, so an
+     * engagement's entries are made in order and one at a time. Stops early if a lane is full
+     */
+    private void claimAll() {
+        Optional<OutboxEntry> claimed = claim();
+
+        while(running && claimed.isPresent()) {
+            OutboxEntry entry = claimed.get();
+            Optional<OutboxEntry> earlier = findEarlier(entry);
+
+            if(earlier.isPresent()) {
+                block(entry, earlier.get());
+            } else if(isInFlightElsewhere(entry)) {
+                release(entry);
+            } else {
+                try {
+                    lanes.submit(entry.getEngagementUuid(), () -> dispatch(entry));
+                } catch (RejectedExecutionException e) {
+                    LOGGER.debug("Outbox lane {} is full", lanes.lane(entry.getEngagementUuid()));
+                    release(entry);
+                    return;
+                }
+            }
+
+            claimed = claim();
+        }
+    }
+
+    /**
+     * @return true if another instance is making an entry for the same engagement or has claimed one to make
+     */
+    private boolean isInFlightElsewhere(OutboxEntry entry) {
+        Bson filter = Filters.and(Filters.eq(ENGAGEMENT_UUID, entry.getEngagementUuid()), Filters.ne("_id", entry.id),
+                Filters.eq(Outbox.STATUS, Status.IN_PROGRESS.name()), Filters.ne(OWNER, owner), Filters.gt(Outbox.DUE, Instant.now()));
+        return Outbox.collection().countDocuments(filter, new CountOptions().limit(1)) > 0;
+    }
+
+    /**
+     * Status updates only tag the project so they neither wait for nor hold up other entries
+     * @return the oldest entry for the same engagement written before this one that is still to be made
+     */
+    private Optional<OutboxEntry> findEarlier(OutboxEntry entry) {
+        if(EngagementService.UPDATE_STATUS.equals(entry.getType())) {
+            return Optional.empty();
+        }
+
+        Bson filter = Filters.and(Filters.eq(ENGAGEMENT_UUID, entry.getEngagementUuid()), Filters.ne("_id", entry.id),
+                Filters.in(Outbox.STATUS, Status.PENDING.name(), Status.IN_PROGRESS.name()), Filters.ne("type", EngagementService.UPDATE_STATUS),
+                Filters.lt(Outbox.CREATED, entry.getCreated()));
+        return Optional.ofNullable(Outbox.collection().find(filter).sort(Sorts.ascending(Outbox.CREATED)).first());
+    }
+
+    /**
+     * Gives a claimed entry back without counting the attempt, to wait behind an earlier entry. It is due when
+     * the earlier entry is, in case that one's worker goes away, and sooner if the earlier entry is done first
+     */
+    private void block(OutboxEntry entry, OutboxEntry earlier) {
+        Instant soonest = Instant.now().plus(RELEASE_DELAY);
+        Instant due = earlier.getDue() != null && earlier.getDue().isAfter(soonest) ? earlier.getDue() : soonest;
+
+        LOGGER.debug("{} for engagement {} waits for {} {}", entry.getType(), entry.getEngagementUuid(), earlier.getType(), earlier.id);
+        Outbox.collection().updateOne(claimed(entry), Updates.combine(Updates.set(Outbox.STATUS, Status.PENDING.name()),
+                Updates.set(Outbox.DUE, due), Updates.set(BLOCKED, true), Updates.inc(ATTEMPTS, -1)));
+    }
+
+    /**
+     * Makes the entries waiting behind a finished entry due now
+     */
+    private void unblock(OutboxEntry entry) {
+        Bson filter = Filters.and(Filters.eq(ENGAGEMENT_UUID, entry.getEngagementUuid()), Filters.eq(Outbox.STATUS, Status.PENDING.name()),
+                Filters.eq(BLOCKED, true));
+        if(Outbox.collection().updateMany(filter, Updates.combine(Updates.set(Outbox.DUE, Instant.now()), Updates.set(BLOCKED, false)))
+                .getModifiedCount() > 0) {
+            kick();
+        }
+    }
+
+    /**
+     * Gives a claimed entry back without counting the attempt. It is due again shortly
+     */
+    private void release(OutboxEntry entry) {
+        Outbox.collection().updateOne(claimed(entry), Updates.combine(Updates.set(Outbox.STATUS, Status.PENDING.name()),
+                Updates.set(Outbox.DUE, Instant.now().plus(RELEASE_DELAY)), Updates.inc(ATTEMPTS, -1)));
+    }
+
+    private Optional<OutboxEntry> claim() {
+        Instant now = Instant.now();
+        Bson due = Filters.and(Filters.in(Outbox.STATUS, Status.PENDING.name(), Status.IN_PROGRESS.name()), Filters.lte(Outbox.DUE, now));
+        Bson claim = Updates.combine(Updates.set(Outbox.STATUS, Status.IN_PROGRESS.name()), Updates.set(Outbox.DUE, now.plus(claimTtl)),
+                Updates.set(OWNER, owner), Updates.set(BLOCKED, false), Updates.inc(ATTEMPTS, 1));
+
+        return Optional.ofNullable(Outbox.collection().findOneAndUpdate(due, claim,
+                new FindOneAndUpdateOptions().sort(Sorts.ascending(Outbox.DUE, Outbox.CREATED)).returnDocument(ReturnDocument.AFTER)));
+    }
+
+    void dispatch(OutboxEntry entry) {
+        try {
+            send(entry.getType(), entry.getEngagement());
+            Outbox.collection().deleteOne(claimed(entry));
+            registry.counter("outbox.dispatched", "type", entry.getType(), "outcome", "success").increment();
+        } catch (RuntimeException e) {
+            fail(entry, e);
+            return;
+        }
+
+        unblock(entry);
+    }
+
+    private void send(String type, Engagement engagement) {
+        switch (type) {
+        case EngagementService.CREATE_ENGAGEMENT:
+            gitlabService.createEngagementInGitlab(engagement);
+            break;
+        case EngagementService.CREATE_ENGAGEMENT_FILES:
+            gitlabService.createEngagementFiles(engagement);
+            break;
+        case EngagementService.UPDATE_ENGAGEMENT:
+            gitlabService.updateEngagementInGitlab(engagement);
+            break;
+        case EngagementService.DELETE_ENGAGEMENT:
+            gitlabService.deleteEngagementInGitlab(engagement);
+            break;
+        case EngagementService.UPDATE_STATUS:
+            gitlabService.updateStatus(engagement);
+            break;
+        case CategoryService.MERGE_CATEGORIES:
+            gitlabService.updateCategoriesInGitlab(engagement);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown outbox entry type " + type);
+        }
+    }
+
+    private void fail(OutboxEntry entry, RuntimeException e) {
+        String error = String.valueOf(e.getMessage());
+        error = error.length() > MAX_ERROR_LENGTH ? error.substring(0, MAX_ERROR_LENGTH) : error;
+
+        boolean dead = entry.getAttempts() >= maxAttempts;
+        Bson update = dead ? Updates.combine(Updates.set(Outbox.STATUS, Status.DEAD.name()), Updates.set("lastError", error))
+                : Updates.combine(Updates.set(Outbox.STATUS, Status.PENDING.name()), Updates.set("lastError", error),
+                        Updates.set(Outbox.DUE, Instant.now().plus(backoff(entry.getAttempts()))));
+
+        try {
+            Outbox.collection().updateOne(claimed(entry), update);
+            if(dead) {
+                unblock(entry);
+            }
+        } catch (MongoException me) {
+            LOGGER.error("Unable to record failure of outbox entry {}. It will be retried when the claim expires", entry.id, me);
+        }
+
+        registry.counter("outbox.dispatched", "type", entry.getType(), "outcome", dead ? "dead" : "retry").increment();
+
+        if(dead) {
+            LOGGER.error("{} for engagement {} failed {} times. Giving up", entry.getType(), entry.getEngagementUuid(), entry.getAttempts(), e);
+        } else {
+            LOGGER.warn("{} for engagement {} failed (attempt {}). Retrying", entry.getType(), entry.getEngagementUuid(), entry.getAttempts(), e);
+        }
+    }
+
+    /**
+     * @param attempts attempts made so far, at least 1
+     * @return the initial backoff doubled for each attempt after the first, up to the max
+     */
+    Duration backoff(int attempts) {
+        int doublings = Math.min(attempts - 1, 30);
+        Duration backoff = initialBackoff.multipliedBy(1L << doublings);
+        return backoff.compareTo(maxBackoff) > 0 ? maxBackoff : backoff;
+    }
+
+    /**
+     * Matches the entry only while this claim holds, so a worker whose claim ran out does not undo another's
+     */
+    private Bson claimed(OutboxEntry entry) {
+        return Filters.and(Filters.eq("_id", entry.id), Filters.eq(OWNER, owner), Filters.eq(ATTEMPTS, entry.getAttempts()));
+    }
+}
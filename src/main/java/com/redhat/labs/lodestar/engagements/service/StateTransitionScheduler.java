@@ -0,0 +1,273 @@
+package com.redhat.labs.lodestar.engagements.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.redhat.labs.lodestar.engagements.model.Engagement;
+import com.redhat.labs.lodestar.engagements.model.EngagementState;
+import com.redhat.labs.lodestar.engagements.repository.EngagementRepository;
+
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.vertx.ConsumeEvent;
+import io.vertx.mutiny.core.Vertx;
+import io.vertx.mutiny.core.eventbus.EventBus;
+
+/**
+ * Keeps launched engagements ordered by the instant their state next changes. A single timer is armed for the
+ * earliest instant. When it fires only the engagements that are due are re-read and moved to their new state.
+ * Work is proportional to the number of transitions rather than the number of engagements.
+ */
+@ApplicationScoped
+public class StateTransitionScheduler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StateTransitionScheduler.class);
+
+    public static final String STATE_TRANSITION_DUE = "state.transition.due.event";
+    static final String STATE_TRANSITION_LEASE = "engagements.state.transition";
+
+    @Inject
+    Vertx vertx;
+
+    @Inject
+    EventBus bus;
+
+    @Inject
+    EngagementRepository engagementRepository;
+
+    @Inject
+    ChangeFeed changeFeed;
+
+    @Inject
+    LeaseService leaseService;
+
+    @Inject
+    Outbox outbox;
+
+    /**
+     * The timer is re-armed at least this often so that a clock change cannot push a transition out indefinitely
+     */
+    @ConfigProperty(name = "state.transition.max.delay")
+    Duration maxDelay;
+
+    /**
+     * Due transitions that could not be applied, because another instance holds the lease or the write failed,
+     * are tried again after this long
+     */
+    @ConfigProperty(name = "state.transition.retry.delay")
+    Duration retryDelay;
+
+    private final NavigableMap<Instant, Set<String>> wheel = new TreeMap<>();
+    private final Map<String, Instant> scheduled = new HashMap<>();
+    private long timerId = -1;
+    private Instant armedFor;
+
+    void onStart(@Observes StartupEvent event) {
+        rebuild();
+    }
+
+    /**
+     * Replaces everything scheduled with the pending changes in the database
+     */
+    public void rebuild() {
+        Instant now = Instant.now();
+        List<Engagement> pending = engagementRepository.findPendingStateChanges(now);
+
+        synchronized (this) {
+            wheel.clear();
+            scheduled.clear();
+            pending.forEach(e -> add(e, now));
+            arm();
+        }
+
+        LOGGER.info("Scheduled {} state transitions. Next at {}", scheduled.size(), armedFor);
+    }
+
+    public synchronized void schedule(Engagement engagement) {
+        remove(engagement.getUuid());
+        add(engagement, Instant.now());
+        arm();
+    }
+
+    public void schedule(Collection<Engagement> engagements) {
+        schedule(engagements, Instant.now());
+    }
+
+    private synchronized void schedule(Collection<Engagement> engagements, Instant now) {
+        engagements.forEach(e -> {
+            remove(e.getUuid());
+            add(e, now);
+        });
+        arm();
+    }
+
+    public synchronized void unschedule(String uuid) {
+        remove(uuid);
+        arm();
+    }
+
+    public synchronized Optional<Instant> getNextTransition() {
+        return wheel.isEmpty() ? Optional.empty() : Optional.of(wheel.firstKey());
+    }
+
+    /**
+     * Every instance keeps the full schedule but only the lease holder applies due transitions. Its writes reach
+     * the other instances through the change stream, which reschedules them there. Other instances keep the due
+     * transitions and check again later in case the lease holder has gone
+     */
+    @ConsumeEvent(value = STATE_TRANSITION_DUE, blocking = true)
+    void transitionDue(String message) {
+        transitionDue(Instant.now());
+    }
+
+    /**
+     * @param now applies the transitions due at this instant
+     */
+    void transitionDue(Instant now) {
+        if(!leaseService.runIfLeader(STATE_TRANSITION_LEASE, () -> apply(now))) {
+            retryLater();
+        }
+    }
+
+    private void apply(Instant now) {
+        Set<String> due = takeDue(now);
+        List<Engagement> reread = new ArrayList<>();
+        List<Engagement> changed = new ArrayList<>();
+        Map<String, EngagementState> previous = new HashMap<>();
+
+        try {
+            for(String uuid : due) {
+                engagementRepository.getEngagement(uuid).ifPresent(e -> {
+                    reread.add(e);
+                    EngagementState state = e.getState(now);
+                    if(e.getCurrentState() != state) {
+                        previous.put(e.getUuid(), e.getCurrentState());
+                        e.setCurrentState(state);
+                        changed.add(e);
+                    }
+                });
+            }
+
+            if(!changed.isEmpty()) {
+                engagementRepository.updateStates(changed);
+                try {
+                    outbox.enqueue(EngagementService.UPDATE_STATUS, changed);
+                } catch (RuntimeException e) {
+                    changed.forEach(c -> c.setCurrentState(previous.get(c.getUuid())));
+                    engagementRepository.updateStates(changed);
+                    throw e;
+                }
+                changeFeed.changed(changed);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Unable to apply {} due state transitions. Retrying in {}", due.size(), retryDelay, e);
+            putBack(due, now);
+            return;
+        }
+
+        schedule(reread, now);
+
+        LOGGER.debug("{} transitions due, {} changed state", due.size(), changed.size());
+    }
+
+    /**
+     * Returns due transitions to the schedule unless they have been rescheduled since they were taken
+     */
+    private synchronized void putBack(Set<String> due, Instant now) {
+        due.stream().filter(uuid -> !scheduled.containsKey(uuid)).forEach(uuid -> {
+            wheel.computeIfAbsent(now, k -> new HashSet<>()).add(uuid);
+            scheduled.put(uuid, now);
+        });
+        retryLater();
+    }
+
+    /**
+     * Arms the timer for the retry delay instead of the earliest transition, which is already due. It goes back
+     * to normal once the earliest transition changes
+     */
+    private synchronized void retryLater() {
+        if(wheel.isEmpty()) {
+            arm();
+            return;
+        }
+
+        if(timerId >= 0) {
+            vertx.cancelTimer(timerId);
+        }
+
+        armedFor = wheel.firstKey();
+        timerId = vertx.setTimer(Math.max(1, retryDelay.toMillis()), this::fired);
+    }
+
+    private synchronized Set<String> takeDue(Instant now) {
+        Set<String> due = new HashSet<>();
+        NavigableMap<Instant, Set<String>> expired = wheel.headMap(now, true);
+
+        expired.values().forEach(due::addAll);
+        expired.clear();
+        due.forEach(scheduled::remove);
+
+        arm();
+        return due;
+    }
+
+    private void add(Engagement engagement, Instant now) {
+        engagement.nextStateChange(now).ifPresent(next -> {
+            wheel.computeIfAbsent(next, k -> new HashSet<>()).add(engagement.getUuid());
+            scheduled.put(engagement.getUuid(), next);
+        });
+    }
+
+    private void remove(String uuid) {
+        Instant previous = scheduled.remove(uuid);
+        if(previous != null) {
+            Set<String> uuids = wheel.get(previous);
+            uuids.remove(uuid);
+            if(uuids.isEmpty()) {
+                wheel.remove(previous);
+            }
+        }
+    }
+
+    /**
+     * Only one timer is outstanding. It is replaced when the earliest transition changes
+     */
+    private void arm() {
+        Instant next = wheel.isEmpty() ? null : wheel.firstKey();
+
+        if(Objects.equals(next, armedFor)) {
+            return;
+        }
+
+        if(timerId >= 0) {
+            vertx.cancelTimer(timerId);
+            timerId = -1;
+        }
+
+        armedFor = next;
+
+        if(next != null) {
+            long delay = Math.max(1, Math.min(Duration.between(Instant.now(), next).toMillis(), maxDelay.toMillis()));
+            timerId = vertx.setTimer(delay, this::fired);
+        }
+    }
+
+    private void fired(long id) {
+        synchronized (this) {
+            if(id != timerId) {
+                return;
+            }
+            timerId = -1;
+            armedFor = null;
+        }
+
+        bus.publish(STATE_TRANSITION_DUE, STATE_TRANSITION_DUE);
+    }
+}
@@ -0,0 +1,57 @@
+package com.redhat.labs.lodestar.engagements.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+
+/**
+ * Runs tasks with the same key one at a time in the order they were submitted. Tasks with different keys run in
+ * parallel unless their keys share a lane. Each lane is a single thread with a bounded queue, so a slow key only
+ * holds up its own lane.
+ */
+public class KeyedExecutor {
+
+    private final List<ExecutorService> lanes = new ArrayList<>();
+
+    /**
+     * @param name thread name prefix and the executor name in metrics
+     * @param laneCount the number of lanes (threads)
+     * @param queueSize the most tasks that may wait in one lane
+     * @param registry lane metrics are registered here, tagged by lane number
+     */
+    public KeyedExecutor(String name, int laneCount, int queueSize, MeterRegistry registry) {
+        for(int i = 0; i < laneCount; i++) {
+            String threadName = name + "-" + i;
+            ThreadPoolExecutor lane = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(queueSize), r -> {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            lanes.add(ExecutorServiceMetrics.monitor(registry, lane, name, Tags.of("lane", String.valueOf(i))));
+        }
+    }
+
+    /**
+     * @throws RejectedExecutionException if the key's lane is full
+     */
+    public void submit(String key, Runnable task) {
+        lanes.get(lane(key)).execute(task);
+    }
+
+    public int lane(String key) {
+        return key == null ? 0 : Math.floorMod(key.hashCode(), lanes.size());
+    }
+
+    public void shutdown() {
+        lanes.forEach(ExecutorService::shutdown);
+    }
+}
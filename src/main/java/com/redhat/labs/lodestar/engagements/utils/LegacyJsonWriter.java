@@ -0,0 +1,274 @@
+package com.redhat.labs.lodestar.engagements.utils;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.CharacterEscapes;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.core.util.DefaultIndenter;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.BeanPropertyWriter;
+import com.fasterxml.jackson.databind.ser.PropertyWriter;
+import com.redhat.labs.lodestar.engagements.exception.EngagementException;
+import com.redhat.labs.lodestar.engagements.model.Engagement;
+
+/**
+ * Writes the legacy engagement.json in one pass. Fields are sorted by name and snake case, the same as the
+ * engagement file, plus the legacy names of a few fields and the subtrees carried over from the existing legacy
+ * file. Output is indented and escaped like gson's pretty printing so commits only show real changes.
+ */
+@ApplicationScoped
+public class LegacyJsonWriter {
+
+    public static final Set<String> PRESERVED = Set.of("artifacts", "engagement_users", "hosting_environments");
+
+    private static final Set<String> EXCLUDED = Set.of("artifact_count", "hosting_count", "last_message", "participant_count");
+    private static final CharacterEscapes GSON_ESCAPES = new GsonEscapes();
+    private static final Map<String, String> LEGACY_NAMES = Map.of("type", "engagement_type", "region", "engagement_region",
+            "name", "project_name");
+
+    @Inject
+    JsonMarshaller json;
+
+    private ObjectMapper om;
+
+    /**
+     * Output names in order. A null writer is a preserved legacy subtree
+     */
+    private List<Map.Entry<String, BeanPropertyWriter>> fields;
+
+    @PostConstruct
+    void setup() {
+        om = json.om;
+
+        Map<String, BeanPropertyWriter> sorted = new TreeMap<>();
+        try {
+            Iterator<PropertyWriter> properties = om.getSerializerProviderInstance().findValueSerializer(Engagement.class).properties();
+            while(properties.hasNext()) {
+                BeanPropertyWriter property = (BeanPropertyWriter) properties.next();
+                if(!EXCLUDED.contains(property.getName())) {
+                    sorted.put(property.getName(), property);
+                    if(LEGACY_NAMES.containsKey(property.getName())) {
+                        sorted.put(LEGACY_NAMES.get(property.getName()), property);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new EngagementException("Unable to find engagement properties", e);
+        }
+        PRESERVED.forEach(p -> sorted.put(p, null));
+
+        fields = Collections.unmodifiableList(new ArrayList<>(sorted.entrySet()));
+    }
+
+    /**
+     * Reads only the subtrees that are carried over from a legacy file. Everything else is skipped without being
+     * parsed into a tree.
+     * @param legacy the existing legacy file. Null if there is none
+     * @return the preserved subtrees by name. Missing and null subtrees are left out
+     */
+    public Map<String, JsonNode> readPreserved(String legacy) {
+        Map<String, JsonNode> preserved = new HashMap<>();
+        if(legacy == null) {
+            return preserved;
+        }
+
+        try (JsonParser parser = om.createParser(legacy)) {
+            if(parser.nextToken() != JsonToken.START_OBJECT) {
+                return preserved;
+            }
+
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if(PRESERVED.contains(field)) {
+                    JsonNode node = parser.readValueAsTree();
+                    if(node != null && !node.isNull()) {
+                        preserved.put(field, node);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            throw new EngagementException("Error translating legacy engagement json data", e);
+        }
+
+        return preserved;
+    }
+
+    /**
+     * @param preserved subtrees as read by {@link #readPreserved(String)}
+     * @return each subtree as compact json, for storing
+     */
+    public Map<String, String> toJson(Map<String, JsonNode> preserved) {
+        Map<String, String> raw = new HashMap<>();
+        preserved.forEach((name, node) -> raw.put(name, node.toString()));
+        return raw;
+    }
+
+    /**
+     * @param raw subtrees as stored by {@link #toJson(Map)}
+     * @return the subtrees, ready to write
+     */
+    public Map<String, JsonNode> fromJson(Map<String, String> raw) {
+        Map<String, JsonNode> preserved = new HashMap<>();
+        try {
+            for(Map.Entry<String, String> subtree : raw.entrySet()) {
+                preserved.put(subtree.getKey(), om.readTree(subtree.getValue()));
+            }
+        } catch (IOException e) {
+            throw new EngagementException("Error translating legacy engagement json data", e);
+        }
+        return preserved;
+    }
+
+    /**
+     * @param engagement the engagement to write
+     * @param preserved subtrees carried over from the existing legacy file
+     * @return the legacy engagement.json content
+     */
+    public String write(Engagement engagement, Map<String, JsonNode> preserved) {
+        StringWriter writer = new StringWriter();
+
+        try (JsonGenerator gen = om.createGenerator(writer)) {
+            gen.setPrettyPrinter(new LegacyPrettyPrinter());
+            gen.setCharacterEscapes(GSON_ESCAPES);
+            SerializerProvider provider = om.getSerializerProviderInstance();
+
+            gen.writeStartObject();
+            for(Map.Entry<String, BeanPropertyWriter> field : fields) {
+                if(field.getValue() == null) {
+                    JsonNode node = preserved.get(field.getKey());
+                    if(node != null) {
+                        gen.writeFieldName(field.getKey());
+                        gen.writeTree(node);
+                    }
+                    continue;
+                }
+
+                Object value = field.getValue().get(engagement);
+                if(value != null) {
+                    gen.writeFieldName(field.getKey());
+                    JsonSerializer<Object> serializer = provider.findValueSerializer(value.getClass());
+                    serializer.serialize(value, gen, provider);
+                }
+            }
+            gen.writeEndObject();
+        } catch (Exception e) {
+            throw new EngagementException("Error translating engagement data to legacy json", e);
+        }
+
+        return writer.toString();
+    }
+
+    /**
+     * Two space indent, arrays one value per line, "key": value and empty containers as {} and []
+     */
+    static class LegacyPrettyPrinter extends DefaultPrettyPrinter {
+
+        private static final long serialVersionUID = 1L;
+
+        LegacyPrettyPrinter() {
+            DefaultIndenter indenter = new DefaultIndenter("  ", "\n");
+            indentObjectsWith(indenter);
+            indentArraysWith(indenter);
+        }
+
+        LegacyPrettyPrinter(LegacyPrettyPrinter base) {
+            super(base);
+        }
+
+        @Override
+        public DefaultPrettyPrinter createInstance() {
+            return new LegacyPrettyPrinter(this);
+        }
+
+        @Override
+        public void writeObjectFieldValueSeparator(JsonGenerator g) throws IOException {
+            g.writeRaw(": ");
+        }
+
+        @Override
+        public void writeEndObject(JsonGenerator g, int nrOfEntries) throws IOException {
+            _nesting--;
+            if(nrOfEntries > 0) {
+                _objectIndenter.writeIndentation(g, _nesting);
+            }
+            g.writeRaw('}');
+        }
+
+        @Override
+        public void writeEndArray(JsonGenerator g, int nrOfValues) throws IOException {
+            _nesting--;
+            if(nrOfValues > 0) {
+                _arrayIndenter.writeIndentation(g, _nesting);
+            }
+            g.writeRaw(']');
+        }
+    }
+
+    /**
+     * Gson's default escaping. Html characters (&lt; &gt; &amp; = ') and control characters without a short escape
+     * are written as lower case unicode escapes, as are the line and paragraph separators
+     */
+    static class GsonEscapes extends CharacterEscapes {
+
+        private static final long serialVersionUID = 1L;
+        private static final String HTML = "<>&='";
+
+        private final int[] asciiEscapes = standardAsciiEscapesForJSON();
+        private final SerializableString[] asciiSequences = new SerializableString[128];
+        private final SerializableString lineSeparator = unicode(0x2028);
+        private final SerializableString paragraphSeparator = unicode(0x2029);
+
+        GsonEscapes() {
+            for(int c = 0; c < asciiEscapes.length; c++) {
+                if(asciiEscapes[c] == ESCAPE_STANDARD || HTML.indexOf(c) >= 0) {
+                    asciiEscapes[c] = ESCAPE_CUSTOM;
+                    asciiSequences[c] = unicode(c);
+                }
+            }
+        }
+
+        @Override
+        public int[] getEscapeCodesForAscii() {
+            return asciiEscapes;
+        }
+
+        @Override
+        public SerializableString getEscapeSequence(int ch) {
+            if(ch < asciiSequences.length) {
+                return asciiSequences[ch];
+            }
+            if(ch == 0x2028) {
+                return lineSeparator;
+            }
+            return ch == 0x2029 ? paragraphSeparator : null;
+        }
+
+        private static SerializableString unicode(int ch) {
+            return new SerializedString(String.format("\\u%04x", ch));
+        }
+    }
+}
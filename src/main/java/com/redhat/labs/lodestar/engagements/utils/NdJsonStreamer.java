@@ -0,0 +1,74 @@
+package com.redhat.labs.lodestar.engagements.utils;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Instance;
+import javax.inject.Inject;
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+import javax.json.bind.JsonbConfig;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoIterable;
+
+import io.quarkus.jsonb.JsonbConfigCustomizer;
+
+/**
+ * Writes query results as newline delimited json (one document per line) while the cursor is read. Only the
+ * cursor's current batch is held in memory and a slow client slows the reads since the writes block.
+ */
+@ApplicationScoped
+public class NdJsonStreamer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NdJsonStreamer.class);
+
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+
+    @Inject
+    Instance<JsonbConfigCustomizer> customizers;
+
+    Jsonb jsonb;
+
+    /**
+     * Same config as responses so a line matches an element of the json array response. Formatting would split
+     * a document over lines so it is turned off.
+     */
+    @PostConstruct
+    void createJsonb() {
+        JsonbConfig config = new JsonbConfig();
+        customizers.forEach(c -> c.customize(config));
+        jsonb = JsonbBuilder.create(config.withFormatting(false));
+    }
+
+    @PreDestroy
+    void closeJsonb() throws Exception {
+        jsonb.close();
+    }
+
+    public <T> StreamingOutput stream(MongoIterable<T> results) {
+        return output -> {
+            long count = 0;
+            Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+
+            try (MongoCursor<T> cursor = results.iterator()) {
+                while (cursor.hasNext()) {
+                    writer.write(jsonb.toJson(cursor.next())); //toJson(Object, Writer) closes the writer
+                    writer.write('\n');
+                    count++;
+                }
+            }
+
+            writer.flush();
+            LOGGER.debug("Streamed {} documents", count);
+        };
+    }
+}
@@ -5,17 +5,28 @@ import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.bson.BSONException;
+import org.bson.BsonDocument;
+import org.bson.BsonNull;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
 import org.bson.conversions.Bson;
+
+import com.mongodb.client.model.Projections;
 import org.eclipse.microprofile.openapi.annotations.parameters.Parameter;
 
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.*;
 
 import static com.mongodb.client.model.Aggregates.limit;
 import static com.mongodb.client.model.Aggregates.skip;
+import static com.mongodb.client.model.Filters.*;
 import static com.mongodb.client.model.Sorts.*;
 
 @Data
@@ -23,12 +34,18 @@ import static com.mongodb.client.model.Sorts.*;
 @NoArgsConstructor
 @AllArgsConstructor
 public class PageFilter {
+    private static final String LAST_UPDATE = "lastUpdate";
+    private static final String UUID = "uuid";
+    private static final String SUMMARY = "summary";
 
-    @Builder.Default
-    private Sort defaultSort = Sort.by("lastUpdate", Sort.Direction.Descending).and("uuid");
+    /**
+     * Enough for a list view. Launch and the dates are needed to derive state
+     */
+    private static final List<String> SUMMARY_FIELDS = List.of(UUID, "name", "customerName", "region", "type", "currentState",
+            "launch", "startDate", "endDate", "archiveDate", "createdDate", LAST_UPDATE);
 
     @Builder.Default
-    private Bson defaultBsonSort = descending("lastUpdate", "uuid");
+    private Sort defaultSort = Sort.by(LAST_UPDATE, Sort.Direction.Descending).and(UUID);
 
     @DefaultValue("0")
     @Parameter(description = "page number of results to return")
@@ -44,8 +61,16 @@ public class PageFilter {
     @QueryParam("sort")
     private String sort;
 
+    @Parameter(description = "continue from the end of a previous page. Use the value from the next link. Page is ignored when set")
+    @QueryParam("after")
+    private String after;
+
+    @Parameter(description = "comma separated list of fields to return or summary for a list view set. All fields are returned if not set")
+    @QueryParam("fields")
+    private String fields;
+
     public int getStartAt() {
-        return page * pageSize;
+        return after == null ? page * pageSize : 0;
     }
     
     public Bson getOffSet() {
@@ -57,27 +82,156 @@ public class PageFilter {
     }
 
     public Bson getBsonSort() {
+        List<Bson> querySort = new ArrayList<>();
+        getSortFields().forEach((field, descending) -> querySort.add(descending ? descending(field) : ascending(field)));
+
+        return orderBy(querySort);
+    }
+
+    /**
+     * The uuid and sort fields are always included so that the next page can be found
+     * @return a projection of the requested fields or null for all fields
+     */
+    public Bson getProjection() {
+        if(fields == null || fields.isBlank()) {
+            return null;
+        }
+
+        Set<String> include = new LinkedHashSet<>();
+
+        for(String field : fields.split(",")) {
+            field = field.trim();
+
+            if(SUMMARY.equals(field)) {
+                include.addAll(SUMMARY_FIELDS);
+            } else if("projectName".equals(field)) { //legacy naming on FE
+                include.add("name");
+            } else if(!field.isEmpty()) {
+                include.add(toFieldName(field));
+            }
+        }
+
+        include.addAll(getSortFields().keySet());
+        return Projections.include(new ArrayList<>(include));
+    }
+
+    /**
+     * Fields can be requested by their json (snake case) name
+     */
+    private String toFieldName(String jsonName) {
+        StringBuilder fieldName = new StringBuilder();
+        boolean upper = false;
+
+        for(char c : jsonName.toCharArray()) {
+            if(c == '_') {
+                upper = true;
+            } else {
+                fieldName.append(upper ? Character.toUpperCase(c) : c);
+                upper = false;
+            }
+        }
+
+        return fieldName.toString();
+    }
+
+    /**
+     * Sort fields in sort order. Always ends with uuid so every document has a distinct position
+     * @return field name mapped to true if the field is sorted descending
+     */
+    public Map<String, Boolean> getSortFields() {
+        Map<String, Boolean> fields = new LinkedHashMap<>();
+
         if(sort == null) {
-            return defaultBsonSort;
+            fields.put(LAST_UPDATE, true);
+        } else {
+            for (String s : sort.split(",")) {
+                String[] sortFields = s.split("\\|");
+
+                if("projectName".equals(sortFields[0])) { //legacy naming on FE
+                    sortFields[0] = "name";
+                }
+                String direction = sortFields.length == 2 ? sortFields[1] : "";
+                fields.putIfAbsent(sortFields[0], isDescending(direction));
+            }
         }
 
-        String[] sortAll = sort.split(",");
-        List<Bson> querySort = new ArrayList<>();
-        String direction;
+        fields.putIfAbsent(UUID, false);
+        return fields;
+    }
 
-        for (String s : sortAll) {
-            String[] sortFields = s.split("\\|");
+    /**
+     * Keyset paging. Matches documents that sort after the position in the after token. Missing values sort lowest
+     * in mongo so they come first ascending and last descending
+     * @return a filter or null if there is no after token
+     */
+    public Bson getAfterFilter() {
+        if(after == null) {
+            return null;
+        }
 
-            if("projectName".equals(sortFields[0])) { //legacy naming on FE
-                sortFields[0] = "name";
+        BsonDocument position = decodeAfter(after);
+        Map<String, Boolean> fields = getSortFields();
+
+        if(!position.keySet().equals(fields.keySet())) {
+            throw new WebApplicationException("after does not match the sort", Response.Status.BAD_REQUEST);
+        }
+
+        List<Bson> ors = new ArrayList<>();
+        List<Bson> equalSoFar = new ArrayList<>();
+
+        for (Map.Entry<String, Boolean> field : fields.entrySet()) {
+            BsonValue value = position.get(field.getKey());
+            Bson beyond = beyond(field.getKey(), value, field.getValue());
+
+            if(beyond != null) {
+                List<Bson> branch = new ArrayList<>(equalSoFar);
+                branch.add(beyond);
+                ors.add(branch.size() == 1 ? beyond : and(branch));
             }
-            direction = sortFields.length == 2 ? sortFields[1] : "";
-            querySort.add(isDescending(direction) ? descending(sortFields[0]) : ascending(sortFields[0]));
+
+            equalSoFar.add(eq(field.getKey(), value));
         }
 
-        querySort.add(ascending("uuid"));
-        return orderBy(querySort);
+        return ors.isEmpty() ? exists("_id", false) : or(ors);
+    }
+
+    /**
+     * @param lastDocument the last document of the current page
+     * @return a token to pass as after to get the following page
+     */
+    public String createAfter(BsonDocument lastDocument) {
+        BsonDocument position = new BsonDocument();
+
+        for(String field : getSortFields().keySet()) {
+            BsonValue value = lastDocument;
+            for(String part : field.split("\\.")) {
+                value = value != null && value.isDocument() ? value.asDocument().get(part) : null;
+            }
+            position.append(field, value == null ? BsonNull.VALUE : value);
+        }
+
+        RawBsonDocument raw = new RawBsonDocument(position, new BsonDocumentCodec());
+        ByteBuffer buffer = raw.getByteBuffer().asNIO();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private BsonDocument decodeAfter(String token) {
+        try {
+            return new RawBsonDocument(Base64.getUrlDecoder().decode(token)).clone();
+        } catch (IllegalArgumentException | BSONException e) {
+            throw new WebApplicationException("after is not valid", Response.Status.BAD_REQUEST);
+        }
+    }
+
+    private Bson beyond(String field, BsonValue value, boolean descending) {
+        if(descending) {
+            return value.isNull() ? null : or(lt(field, value), eq(field, null));
+        }
 
+        return value.isNull() ? ne(field, null) : gt(field, value);
     }
 
     public Sort getPanacheSort() {
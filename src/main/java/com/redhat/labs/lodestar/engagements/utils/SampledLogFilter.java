@@ -0,0 +1,36 @@
+package com.redhat.labs.lodestar.engagements.utils;
+
+import java.util.logging.Filter;
+import java.util.logging.LogRecord;
+
+/**
+ * Passes the gitlab4j request / response log records of 1 in every n requests. gitlab4j starts each record with
+ * the request id so a request and its response are kept or dropped together. Records without an id pass.
+ */
+public class SampledLogFilter implements Filter {
+
+    private final int rate;
+
+    public SampledLogFilter(int rate) {
+        this.rate = Math.max(1, rate);
+    }
+
+    @Override
+    public boolean isLoggable(LogRecord logRecord) {
+        String message = logRecord.getMessage();
+        if(message == null) {
+            return true;
+        }
+
+        int end = 0;
+        while(end < message.length() && end < 19 && Character.isDigit(message.charAt(end))) {
+            end++;
+        }
+
+        if(end == 0) {
+            return true;
+        }
+
+        return Long.parseLong(message.substring(0, end)) % rate == 0;
+    }
+}
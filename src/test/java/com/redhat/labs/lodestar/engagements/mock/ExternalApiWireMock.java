@@ -11,6 +11,10 @@ import org.gitlab4j.api.models.Namespace;
 import org.gitlab4j.api.models.Project;
 import org.gitlab4j.api.utils.UrlEncoder;
 
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -40,7 +44,7 @@ public class ExternalApiWireMock implements QuarkusTestResourceLifecycleManager
                 .withBody(body)
         ));
 
-        body = json.toJson(new Commit().withMessage("ExternalApiWireMock"));
+        body = json.toJson(new Commit().withId("commit3").withMessage("ExternalApiWireMock"));
         
         stubFor(post(urlMatching("/api/v4/projects/[0-9]?\\d/repository/commits")).willReturn(aResponse()
                 .withHeader("Content-Type",  "application/json")
@@ -70,6 +74,12 @@ public class ExternalApiWireMock implements QuarkusTestResourceLifecycleManager
                         .withHeader("X-Total", "1").withBody(body)
                         ));
 
+        stubFor(get(urlPathEqualTo("/api/v4/groups/2/projects")).withQueryParam("order_by", equalTo("last_activity_at"))
+                .willReturn(aResponse().withHeader("Content-Type",  "application/json")
+                        .withHeader("X-Page", "1").withHeader("X-Total-Pages", "1").withHeader("X-Per-Pages", "100")
+                        .withHeader("X-Total", "2").withBody(body)
+                        ));
+
         body = ResourceLoader.loadGitlabFile("gitlab-engagement-file-1.json");
 
         stubFor(get(urlEqualTo("/api/v4/projects/1/repository/files/engagement%2Fengagement%2Ejson?ref=master")).willReturn(aResponse()
@@ -136,6 +146,15 @@ public class ExternalApiWireMock implements QuarkusTestResourceLifecycleManager
                 .withBody(body)
                 ));
 
+        body = "[{ \"id\": \"blob1\", \"name\": \"engagement.json\", \"type\": \"blob\", \"path\": \"engagement/engagement.json\" }, "
+                + "{ \"id\": \"blob\", \"name\": \"category.json\", \"type\": \"blob\", \"path\": \"engagement/category.json\" }]";
+
+        stubFor(get(urlPathEqualTo("/api/v4/projects/1/repository/tree")).willReturn(aResponse()
+                .withHeader("Content-Type",  "application/json")
+                .withHeader("X-Page", "1").withHeader("X-Total-Pages", "1").withHeader("X-Per-Pages", "96")
+                .withHeader("X-Total", "2").withBody(body)
+        ));
+
         body = ResourceLoader.loadGitlabFile("gitlab-category-file-2.json");
 
         stubFor(get(urlEqualTo("/api/v4/projects/2/repository/files/engagement%2Fcategory%2Ejson?ref=master")).willReturn(aResponse()
@@ -211,6 +230,12 @@ public class ExternalApiWireMock implements QuarkusTestResourceLifecycleManager
                 .withBody("{}")
         ));
 
+        //graphql file read. Other graphql requests get a 404 and fall back to rest
+        stubFor(post(urlEqualTo("/api/graphql")).withRequestBody(containing("gid://gitlab/Project/777")).willReturn(aResponse()
+                .withHeader("Content-Type",  "application/json")
+                .withStatus(200)
+                .withBody(graphqlFiles())));
+
         body = " { \"d4c228ec-9dcc-435f-bcc1-60ebcec269f3\": 217384 }";
 
         stubFor(get(urlEqualTo("/api/participants/engagements/counts")).willReturn(aResponse()
@@ -236,10 +261,29 @@ public class ExternalApiWireMock implements QuarkusTestResourceLifecycleManager
         config.put("artifacts.api/mp-rest/url", wireMockServer.baseUrl());
         config.put("activity.api/mp-rest/url", wireMockServer.baseUrl());
         config.put("gitlab4j.api.url", wireMockServer.baseUrl());
+        config.put("gitlab.graphql/mp-rest/url", wireMockServer.baseUrl());
         
         return config;
     }
 
+    private String graphqlFiles() {
+        JsonObject blob = Json.createObjectBuilder().add("path", ENGAGEMENT_V2_JSON).add("oid", "blob1")
+                .add("rawBlob", ResourceLoader.load("gitlab-engagement-file-1.json")).build();
+        JsonArray projects = Json.createArrayBuilder()
+                .add(graphqlProject(777, Json.createArrayBuilder().add(blob)))
+                .add(graphqlProject(778, Json.createArrayBuilder()))
+                .build();
+
+        return Json.createObjectBuilder().add("data", Json.createObjectBuilder().add("projects",
+                Json.createObjectBuilder().add("nodes", projects))).build().toString();
+    }
+
+    private JsonObject graphqlProject(int projectId, JsonArrayBuilder blobs) {
+        return Json.createObjectBuilder().add("id", "gid://gitlab/Project/" + projectId)
+                .add("repository", Json.createObjectBuilder().add("blobs", Json.createObjectBuilder().add("nodes", blobs)))
+                .build();
+    }
+
     @Override
     public void stop() {
         if(null != wireMockServer) {
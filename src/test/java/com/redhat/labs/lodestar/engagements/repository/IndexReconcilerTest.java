@@ -0,0 +1,55 @@
+package com.redhat.labs.lodestar.engagements.repository;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import javax.inject.Inject;
+
+import org.junit.jupiter.api.Test;
+
+import com.redhat.labs.lodestar.engagements.model.Engagement;
+
+import io.quarkus.test.junit.QuarkusTest;
+
+@QuarkusTest
+class IndexReconcilerTest {
+
+    @Inject
+    IndexReconciler indexReconciler;
+
+    @Inject
+    EngagementRepository engagementRepository;
+
+    @Test
+    void testReconcile() {
+        indexReconciler.reconcile();
+        assertTrue(indexReconciler.findDrift().values().stream().allMatch(List::isEmpty));
+
+        engagementRepository.mongoCollection().dropIndex("project_id");
+        String collection = engagementRepository.mongoCollection().getNamespace().getCollectionName();
+        assertEquals(List.of("project_id"), indexReconciler.findDrift().get(collection));
+
+        indexReconciler.reconcile();
+        assertTrue(indexReconciler.findDrift().values().stream().allMatch(List::isEmpty));
+    }
+
+    @Test
+    void testReplaceAllSkipsUniqueIndexOnDuplicates() {
+        List<Engagement> existing = engagementRepository.listAll();
+        String collection = engagementRepository.mongoCollection().getNamespace().getCollectionName();
+
+        try {
+            engagementRepository.replaceAll(List.of(
+                    Engagement.builder().uuid("dup-1").customerName("dup").name("licate").build(),
+                    Engagement.builder().uuid("dup-2").customerName("dup").name("licate").build()));
+
+            assertEquals(2, engagementRepository.count());
+            assertEquals(List.of("customer_name_unique"), indexReconciler.findDrift().get(collection));
+        } finally {
+            engagementRepository.replaceAll(existing);
+        }
+
+        assertTrue(indexReconciler.findDrift().get(collection).isEmpty());
+    }
+}
@@ -14,6 +14,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import com.redhat.labs.lodestar.engagements.mock.ExternalApiWireMock;
+import com.redhat.labs.lodestar.engagements.model.OutboxEntry;
 import com.redhat.labs.lodestar.engagements.service.CategoryService;
 import com.redhat.labs.lodestar.engagements.service.EngagementService;
 
@@ -38,6 +39,7 @@ class CategoryResourceTest {
 
     @BeforeEach
     void setUp() {
+        OutboxEntry.deleteAll();
         engagementService.refresh();
         gitlabService.refreshCategories();
     }
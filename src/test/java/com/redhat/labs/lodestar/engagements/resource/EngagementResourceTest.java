@@ -20,6 +20,7 @@ import com.redhat.labs.lodestar.engagements.utils.JsonMarshaller;
 import com.redhat.labs.lodestar.engagements.mock.ExternalApiWireMock;
 import com.redhat.labs.lodestar.engagements.model.Engagement;
 import com.redhat.labs.lodestar.engagements.model.Launch;
+import com.redhat.labs.lodestar.engagements.model.OutboxEntry;
 import com.redhat.labs.lodestar.engagements.service.EngagementService;
 
 import io.quarkus.test.common.QuarkusTestResource;
@@ -32,6 +33,8 @@ import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.List;
 import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @QuarkusTest
 @TestHTTPEndpoint(EngagementResource.class)
@@ -49,6 +52,7 @@ class EngagementResourceTest {
 
     @BeforeEach
     void setUp() {
+        OutboxEntry.deleteAll();
         engagementService.refresh();
     }
 
@@ -136,6 +140,46 @@ class EngagementResourceTest {
                 .when().get().then().statusCode(200).header("x-total-engagements", equalTo("2")).body("size()", equalTo(2));
     }
 
+    @Test
+    void testGetEngagementsAfter() {
+        String link = given().queryParam("pageSize", 1).when().get().then().statusCode(200)
+                .header("x-total-engagements", equalTo("2")).body("size()", equalTo(1)).extract().header("Link");
+        String first = given().queryParam("pageSize", 1).when().get().then().extract().path("[0].uuid");
+
+        assertNotNull(link);
+        Matcher after = Pattern.compile("after=([^&>]+)").matcher(link);
+        assertTrue(after.find());
+
+        String second = given().queryParam("pageSize", 1).queryParam("after", after.group(1)).when().get().then().statusCode(200)
+                .body("size()", equalTo(1)).extract().path("[0].uuid");
+        assertNotEquals(first, second);
+
+        given().queryParam("after", "not-a-token").when().get().then().statusCode(400);
+    }
+
+    @Test
+    void testStreamEngagements() {
+        String body = given().accept("application/x-ndjson").when().get().then().statusCode(200)
+                .contentType("application/x-ndjson").extract().asString();
+        assertEquals(2, body.lines().count());
+
+        body = given().queryParam("stream", true).queryParam("region", "na").when().get().then().statusCode(200)
+                .extract().asString();
+        assertEquals(2, body.lines().count());
+        assertTrue(body.lines().allMatch(line -> line.startsWith("{") && line.contains("\"uuid\"")));
+    }
+
+    @Test
+    void testGetEngagementFields() {
+        given().queryParam("fields", "summary").queryParam("region", "na").when().get().then().statusCode(200)
+                .body("size()", equalTo(2)).body("[0].uuid", notNullValue()).body("[0].customer_name", notNullValue())
+                .body("[0].creation_details", nullValue()).body("[0].state", equalTo("UPCOMING"));
+
+        given().queryParam("fields", "customer_name").when().get().then().statusCode(200)
+                .body("size()", equalTo(2)).body("[0].uuid", notNullValue()).body("[0].customer_name", notNullValue())
+                .body("[0].name", nullValue()).body("[0].region", nullValue());
+    }
+
     @Test
     void testGetPagedEngagementsForRegion() {
         int page = 0;
@@ -170,6 +214,48 @@ class EngagementResourceTest {
                 .body("use_cases[0].uuid", equalTo("use-case-1"));
     }
 
+    @Test
+    void testGetEngagementNotModified() {
+        String uuid = "uuid1";
+        String etag = given().pathParam("uuid", uuid).when().get("{uuid}").then().statusCode(200)
+                .header("ETag", notNullValue()).extract().header("ETag");
+
+        given().pathParam("uuid", uuid).header("If-None-Match", etag).when().get("{uuid}").then().statusCode(304);
+        given().pathParam("uuid", uuid).header("If-None-Match", etag).when().head("{uuid}").then().statusCode(304);
+
+        engagementService.updateCount(uuid, 99, "participantCount");
+
+        given().pathParam("uuid", uuid).header("If-None-Match", etag).when().get("{uuid}").then().statusCode(200)
+                .header("ETag", not(equalTo(etag)));
+    }
+
+    @Test
+    void testGetEngagementsNotModified() {
+        String etag = given().when().get().then().statusCode(200).header("ETag", notNullValue()).extract().header("ETag");
+
+        given().header("If-None-Match", etag).when().get().then().statusCode(304);
+
+        engagementService.updateCount("uuid1", 99, "participantCount");
+
+        given().header("If-None-Match", etag).when().get().then().statusCode(200);
+    }
+
+    @Test
+    void testGetChanges() {
+        int since = given().when().get("changes").then().statusCode(200).extract().path("version");
+
+        given().queryParam("since", since).when().get("changes").then().statusCode(200).body("version", equalTo(since))
+                .body("reset", equalTo(false)).body("uuids", empty());
+
+        engagementService.updateCount("uuid1", 99, "participantCount");
+        engagementService.updateCount("uuid2", 99, "participantCount");
+
+        given().queryParam("since", since).when().get("changes").then().statusCode(200).body("version", equalTo(since + 2))
+                .body("reset", equalTo(false)).body("uuids", contains("uuid1", "uuid2"));
+
+        given().queryParam("since", since + 5).when().get("changes").then().statusCode(200).body("reset", equalTo(true));
+    }
+
     @Test
     void testGetEngagementByUuidNotFound() {
         String uuid = "uuid1111";
@@ -0,0 +1,74 @@
+package com.redhat.labs.lodestar.engagements.resource;
+
+import static io.restassured.RestAssured.given;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Optional;
+import java.util.Set;
+
+import javax.inject.Inject;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.redhat.labs.lodestar.engagements.mock.ExternalApiWireMock;
+import com.redhat.labs.lodestar.engagements.model.LegacyEngagement;
+import com.redhat.labs.lodestar.engagements.service.GitlabService;
+
+import io.quarkus.test.common.QuarkusTestResource;
+import io.quarkus.test.common.http.TestHTTPEndpoint;
+import io.quarkus.test.junit.QuarkusTest;
+
+@QuarkusTest
+@TestHTTPEndpoint(GitlabHookResource.class)
+@QuarkusTestResource(ExternalApiWireMock.class)
+class GitlabHookResourceTest {
+
+    static final String TOKEN = "X-Gitlab-Token";
+    static final String PUSH = "{ \"object_kind\": \"push\", \"ref\": \"refs/heads/master\", \"after\": \"commit9\", \"project_id\": 12, "
+            + "\"total_commits_count\": 1, \"commits\": [{ \"id\": \"commit9\", \"added\": [], \"modified\": [\"%s\"], \"removed\": [] }] }";
+
+    @Inject
+    GitlabService gitlabService;
+
+    @BeforeEach
+    void init() {
+        LegacyEngagement.deleteAll();
+    }
+
+    @Test
+    void testRefreshLegacy() {
+        gitlabService.refreshLegacy(12, "commit9");
+
+        Optional<LegacyEngagement> legacy = LegacyEngagement.findByProjectId(12);
+        assertTrue(legacy.isPresent());
+        assertEquals("commit2", legacy.get().getLastCommitId());
+    }
+
+    @Test
+    void testLegacyFileChange() {
+        assertTrue(gitlabService.isLegacyFileChange("refs/heads/master", Set.of("engagement.json")));
+        assertTrue(gitlabService.isLegacyFileChange("refs/heads/master", null));
+        assertFalse(gitlabService.isLegacyFileChange("refs/heads/master", Set.of("engagement/engagement.json")));
+        assertFalse(gitlabService.isLegacyFileChange("refs/heads/feature", Set.of("engagement.json")));
+    }
+
+    @Test
+    void testPushOtherFile() {
+        given().header("Content-Type",  "application/json").header(TOKEN, "test-token").body(String.format(PUSH, "engagement/engagement.json"))
+                .when().post("push").then().statusCode(200);
+    }
+
+    @Test
+    void testPushWrongToken() {
+        given().header("Content-Type",  "application/json").body(String.format(PUSH, "engagement.json")).when().post("push").then().statusCode(401);
+        given().header("Content-Type",  "application/json").header(TOKEN, "wrong").body(String.format(PUSH, "engagement.json"))
+                .when().post("push").then().statusCode(401);
+    }
+
+    @Test
+    void testPushProjectIdNotNumber() {
+        given().header("Content-Type",  "application/json").header(TOKEN, "test-token").body(String.format(PUSH, "engagement.json").replace("12", "\"twelve\""))
+                .when().post("push").then().statusCode(400);
+    }
+}
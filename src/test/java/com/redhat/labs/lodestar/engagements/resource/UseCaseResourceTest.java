@@ -1,6 +1,7 @@
 package com.redhat.labs.lodestar.engagements.resource;
 
 import com.redhat.labs.lodestar.engagements.mock.ExternalApiWireMock;
+import com.redhat.labs.lodestar.engagements.model.OutboxEntry;
 import com.redhat.labs.lodestar.engagements.service.EngagementService;
 import io.quarkus.test.common.QuarkusTestResource;
 import io.quarkus.test.common.http.TestHTTPEndpoint;
@@ -23,6 +24,7 @@ class UseCaseResourceTest {
 
     @BeforeEach
     void setUp() {
+        OutboxEntry.deleteAll();
         engagementService.refresh();
     }
 
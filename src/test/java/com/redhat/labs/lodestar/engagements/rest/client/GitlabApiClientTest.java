@@ -2,11 +2,18 @@ package com.redhat.labs.lodestar.engagements.rest.client;
 
 import com.redhat.labs.lodestar.engagements.exception.EngagementGitlabException;
 import com.redhat.labs.lodestar.engagements.model.Engagement;
+import com.redhat.labs.lodestar.engagements.model.EngagementFiles;
 import io.quarkus.test.junit.QuarkusTest;
+import org.gitlab4j.api.models.Project;
+import org.gitlab4j.api.models.RepositoryFile;
 import org.junit.jupiter.api.Test;
 
 import javax.inject.Inject;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -55,8 +62,67 @@ class GitlabApiClientTest {
 
     @Test
     void testGetLegacyNotFound() {
-        String legacy = gitlabApiClient.getLegacyEngagement(LITTLE_JENNY);
+        Optional<RepositoryFile> legacy = gitlabApiClient.getLegacyEngagement(LITTLE_JENNY);
 
-        assertNull(legacy);
+        assertTrue(legacy.isEmpty());
+    }
+
+    @Test
+    void testGetEngagements() {
+        List<Engagement> engagements = gitlabApiClient.getEngagements(Collections.emptySet());
+
+        assertEquals(2, engagements.size());
+        assertEquals(1, engagements.get(0).getProjectId());
+        assertEquals(2, engagements.get(1).getProjectId());
+    }
+
+    @Test
+    void testGetFilesGraphql() {
+        String path = "engagement/engagement.json";
+        Map<Integer, Map<String, RepositoryFile>> files = gitlabApiClient.getFiles(List.of(new Project().withId(777), new Project().withId(778)), List.of(path), true);
+
+        assertEquals(2, files.size());
+        assertTrue(files.get(777).get(path).getContent().contains("uuid1"));
+        assertEquals("blob1", files.get(777).get(path).getBlobId());
+        assertTrue(files.get(778).isEmpty());
+
+        files = gitlabApiClient.getFiles(List.of(new Project().withId(779)), List.of(path), true); //not stubbed. falls back
+        assertTrue(files.isEmpty());
+    }
+
+    @Test
+    void testGetEngagementFilesRecordsBlobIds() {
+        List<EngagementFiles> files = gitlabApiClient.getEngagementFiles(Collections.emptySet(), Collections.emptyMap());
+
+        assertEquals(2, files.size());
+        assertEquals("blob1", files.get(0).getEngagement().getEngagementSha());
+        assertEquals("blob", files.get(0).getEngagement().getCategorySha());
+    }
+
+    @Test
+    void testGetEngagementFilesSkipsUnchanged() {
+        Engagement stored = Engagement.builder().uuid("stored").projectId(1).engagementSha("blob1").categorySha("blob").build();
+        EngagementFiles storedFiles = new EngagementFiles(stored, List.of());
+
+        List<EngagementFiles> files = gitlabApiClient.getEngagementFiles(Collections.emptySet(), Map.of(1, storedFiles));
+
+        assertEquals(2, files.size());
+        assertSame(storedFiles, files.get(0));
+        assertEquals(2, files.get(1).getEngagement().getProjectId());
+        assertEquals("blob1", files.get(1).getEngagement().getEngagementSha());
+
+        stored.setCategorySha("old");
+        files = gitlabApiClient.getEngagementFiles(Collections.emptySet(), Map.of(1, storedFiles));
+
+        assertNotSame(storedFiles, files.get(0));
+        assertEquals("blob", files.get(0).getEngagement().getCategorySha());
+        assertFalse(files.get(0).getCategories().isEmpty());
+    }
+
+    @Test
+    void testGetEngagementsByUuid() {
+        List<Engagement> engagements = gitlabApiClient.getEngagements(Set.of("d4c228ec-9dcc-435f-bcc1-60ebcec269f3"));
+
+        assertEquals(1, engagements.size());
     }
 }
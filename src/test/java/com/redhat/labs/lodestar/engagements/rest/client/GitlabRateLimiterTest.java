@@ -0,0 +1,88 @@
+package com.redhat.labs.lodestar.engagements.rest.client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+
+import org.gitlab4j.api.GitLabApiException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.redhat.labs.lodestar.engagements.exception.EngagementGitlabException;
+import com.redhat.labs.lodestar.engagements.rest.client.GitlabRateLimiter.Priority;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class GitlabRateLimiterTest {
+
+    GitlabRateLimiter limiter;
+
+    @BeforeEach
+    void setup() {
+        limiter = new GitlabRateLimiter();
+        limiter.ratePerSecond = 1000;
+        limiter.burst = 100;
+        limiter.pause = Duration.ofMillis(50);
+        limiter.minLimit = 1;
+        limiter.maxLimit = 4;
+        limiter.bulkShare = 0.25;
+        limiter.permitTimeout = Duration.ofMillis(100);
+        limiter.registry = new SimpleMeterRegistry();
+        limiter.setup();
+    }
+
+    @Test
+    void testAimd() throws GitLabApiException {
+        assertEquals(4, limiter.getLimit());
+
+        long start = System.nanoTime();
+        assertThrows(GitLabApiException.class, () -> limiter.call(() -> {
+            throw new GitLabApiException("slow down", 429);
+        }));
+        assertEquals(2, limiter.getLimit());
+
+        limiter.call(() -> "after pause");
+        assertTrue(System.nanoTime() - start >= Duration.ofMillis(40).toNanos());
+
+        for(int i = 0; i < 10; i++) {
+            limiter.call(() -> "ok");
+        }
+        assertEquals(4, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void testOneDecreasePerWindow() {
+        long first = limiter.acquire(Priority.INTERACTIVE);
+        long second = limiter.acquire(Priority.INTERACTIVE);
+
+        limiter.release(first, 503);
+        assertEquals(2, limiter.getLimit());
+
+        limiter.release(second, 503);
+        assertEquals(2, limiter.getLimit());
+
+        long third = limiter.acquire(Priority.INTERACTIVE);
+        limiter.release(third, 503);
+        assertEquals(1, limiter.getLimit());
+    }
+
+    @Test
+    void testBulkGetsShareOfLimit() {
+        long bulk = limiter.acquire(Priority.BULK);
+        assertThrows(EngagementGitlabException.class, () -> limiter.acquire(Priority.BULK));
+
+        long interactive = limiter.acquire(Priority.INTERACTIVE);
+        assertEquals(2, limiter.getInFlight());
+
+        limiter.release(bulk, 200);
+        limiter.release(interactive, 200);
+    }
+
+    @Test
+    void testBulkPriorityIsScoped() {
+        assertEquals(Priority.INTERACTIVE, limiter.getPriority());
+        assertEquals(Priority.BULK, limiter.bulk(() -> limiter.getPriority()));
+        assertEquals(Priority.INTERACTIVE, limiter.getPriority());
+    }
+}
@@ -1,11 +1,26 @@
 package com.redhat.labs.lodestar.engagements.service;
 
+import com.redhat.labs.lodestar.engagements.model.Category;
+import com.redhat.labs.lodestar.engagements.model.ChangeSet;
+import com.redhat.labs.lodestar.engagements.model.ChangeVersion;
 import com.redhat.labs.lodestar.engagements.model.Engagement;
+import com.redhat.labs.lodestar.engagements.model.EngagementChange;
 import com.redhat.labs.lodestar.engagements.model.EngagementState;
 import com.redhat.labs.lodestar.engagements.model.Launch;
+import com.redhat.labs.lodestar.engagements.model.Lease;
+import com.redhat.labs.lodestar.engagements.model.OutboxEntry;
+import com.redhat.labs.lodestar.engagements.model.SyncCheckpoint;
+import com.redhat.labs.lodestar.engagements.repository.EngagementChangeRepository;
 import com.redhat.labs.lodestar.engagements.repository.EngagementRepository;
 import com.redhat.labs.lodestar.engagements.utils.PageFilter;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
 import io.quarkus.test.junit.QuarkusTest;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -30,8 +45,24 @@ class EngagementServiceTest {
     @Inject
     EngagementRepository repository;
 
+    @Inject
+    EngagementChangeRepository engagementChangeRepository;
+
+    @Inject
+    CategoryService categoryService;
+
+    @Inject
+    StateTransitionScheduler stateTransitionScheduler;
+
+    @Inject
+    ChangeStreamListener changeStreamListener;
+
+    @Inject
+    LeaseService leaseService;
+
     @BeforeEach
     void init() {
+        OutboxEntry.deleteAll();
         engagementService.refresh();
     }
 
@@ -46,6 +77,54 @@ class EngagementServiceTest {
         assertEquals(2, repository.findAll().stream().count());
     }
 
+    @Test
+    void testRefreshReplacesAll() {
+        repository.persist(Engagement.builder().uuid("not-in-gitlab").name("Stale").customerName("Stale Customer").region("na").type("Residency").build());
+        assertEquals(3, repository.count());
+
+        long count = engagementService.refresh();
+
+        assertEquals(2, count);
+        assertTrue(repository.getEngagement("not-in-gitlab").isEmpty());
+    }
+
+    @Test
+    void testRefreshLoadsCategories() {
+        categoryService.replaceAll(List.of(Category.builder().engagementUuid("not-in-gitlab").name("stale").build()));
+
+        engagementService.refresh();
+
+        assertEquals(14, categoryService.count());
+        assertEquals(0, categoryService.countForEngagementUuid("not-in-gitlab"));
+    }
+
+    @Test
+    void testSyncChanges() {
+        repository.deleteAll();
+
+        long count = engagementService.syncChanges();
+
+        assertEquals(2, count);
+        assertEquals(2, repository.count());
+        assertTrue(SyncCheckpoint.findByName(EngagementService.GITLAB_ACTIVITY_CHECKPOINT).isPresent());
+    }
+
+    @Test
+    void testSyncSkipsPendingOutbox() {
+        repository.deleteAll();
+        SyncCheckpoint.deleteAll();
+        OutboxEntry entry = OutboxEntry.builder().type(EngagementService.UPDATE_ENGAGEMENT).engagementUuid("uuid1")
+                .status(OutboxEntry.Status.PENDING).created(Instant.now()).due(Instant.now().plus(Duration.ofHours(1))).build();
+        entry.persist();
+
+        try {
+            assertEquals(1, engagementService.syncChanges());
+            assertTrue(repository.getEngagement("uuid1").isEmpty());
+        } finally {
+            entry.delete();
+        }
+    }
+
     @Test
     void testLastUpdate() {
         engagementService.checkLastUpdate();
@@ -88,6 +167,129 @@ class EngagementServiceTest {
 
     }
 
+    @Test
+    void testStateTransitionScheduled() {
+        String uuid = "transition";
+        Launch l = Launch.builder().launchedBy("Eric").launchedByEmail("eric@redhat.com").launchedDateTime(Instant.now()).build();
+        Instant start = Instant.now().minus(Duration.ofDays(10));
+        Instant end = Instant.now().plus(Duration.ofDays(10));
+        Instant archive = end.plus(Duration.ofDays(30));
+        Engagement e = Engagement.builder().uuid(uuid).name("Transition").customerName("Transition Customer").type("Residency").region("na")
+                .launch(l).startDate(start).endDate(end).archiveDate(archive).build();
+
+        repository.persist(e);
+        stateTransitionScheduler.rebuild();
+
+        assertEquals(Optional.of(end.plusMillis(1)), stateTransitionScheduler.getNextTransition());
+
+        e.setEndDate(Instant.now().minus(Duration.ofDays(1)));
+        stateTransitionScheduler.schedule(e);
+        assertEquals(Optional.of(archive), stateTransitionScheduler.getNextTransition());
+
+        stateTransitionScheduler.unschedule(uuid);
+        assertTrue(stateTransitionScheduler.getNextTransition().isEmpty());
+    }
+
+    @Test
+    void testStateTransitionKeptUntilLeader() {
+        String uuid = "transition-leader";
+        leaseService.runIfLeader(StateTransitionScheduler.STATE_TRANSITION_LEASE, () -> {});
+        Lease.<Lease>mongoCollection().updateOne(Filters.eq("name", StateTransitionScheduler.STATE_TRANSITION_LEASE),
+                Updates.combine(Updates.set("owner", "other"), Updates.inc("token", 1L), Updates.set("expires", Instant.now().plus(Duration.ofHours(1)))));
+
+        Launch l = Launch.builder().launchedBy("Eric").launchedByEmail("eric@redhat.com").launchedDateTime(Instant.now()).build();
+        Instant end = Instant.now().plus(Duration.ofDays(1));
+        Instant archive = end.plus(Duration.ofDays(30));
+        Instant due = end.plus(Duration.ofHours(1));
+        Engagement e = Engagement.builder().uuid(uuid).name("Transition Leader").customerName("Transition Customer").type("Residency").region("na")
+                .launch(l).startDate(end.minus(Duration.ofDays(10))).endDate(end).archiveDate(archive).currentState(EngagementState.ACTIVE).build();
+
+        repository.persist(e);
+        stateTransitionScheduler.rebuild();
+
+        stateTransitionScheduler.transitionDue(due);
+        assertEquals(Optional.of(end.plusMillis(1)), stateTransitionScheduler.getNextTransition());
+
+        Lease.<Lease>mongoCollection().updateOne(Filters.eq("name", StateTransitionScheduler.STATE_TRANSITION_LEASE), Updates.set("expires", Instant.now()));
+
+        stateTransitionScheduler.transitionDue(due);
+        assertEquals(EngagementState.TERMINATING, repository.getEngagement(uuid).get().getCurrentState());
+        assertEquals(Optional.of(archive), stateTransitionScheduler.getNextTransition());
+
+        stateTransitionScheduler.unschedule(uuid);
+    }
+
+    @Test
+    void testEngagementCacheCopiesAndInvalidates() {
+        Engagement engagement = engagementService.getEngagements().get(0);
+        String uuid = engagement.getUuid();
+
+        Engagement cached = engagementService.getEngagement(uuid).get();
+        cached.setDescription("changed by caller");
+        assertNotEquals("changed by caller", engagementService.getEngagement(uuid).get().getDescription());
+
+        engagementService.updateCount(uuid, 42, "participantCount");
+        assertEquals(42, engagementService.getEngagement(uuid).get().getParticipantCount());
+        assertEquals(uuid, engagementService.getEngagementByProject(engagement.getProjectId()).get().getUuid());
+    }
+
+    @Test
+    void testChangeStreamInvalidatesCache() {
+        Engagement engagement = engagementService.getEngagements().get(0);
+        String uuid = engagement.getUuid();
+        engagementService.getEngagement(uuid);
+
+        repository.mongoCollection().updateOne(Filters.eq("uuid", uuid), Updates.set("description", "changed elsewhere"));
+
+        MongoNamespace namespace = repository.mongoCollection().getNamespace();
+        BsonDocument ns = new BsonDocument("db", new BsonString(namespace.getDatabaseName())).append("coll", new BsonString(namespace.getCollectionName()));
+        BsonDocument document = repository.mongoCollection().withDocumentClass(BsonDocument.class).find(Filters.eq("uuid", uuid)).first();
+
+        changeStreamListener.apply(new ChangeStreamDocument<>(OperationType.UPDATE, null, ns, null, document, null, null, null, null, null));
+
+        assertEquals("changed elsewhere", engagementService.getEngagement(uuid).get().getDescription());
+    }
+
+    @Test
+    void testUpdateReadsPastCache() {
+        Engagement engagement = engagementService.getEngagements().get(0);
+        String uuid = engagement.getUuid();
+        engagementService.getEngagement(uuid);
+
+        repository.mongoCollection().updateOne(Filters.eq("uuid", uuid), Updates.set("participantCount", 77));
+
+        Engagement update = engagementService.getEngagement(uuid).get();
+        update.setDescription("updated past the cache");
+        engagementService.update(update, false);
+
+        assertEquals(77, repository.getEngagement(uuid).get().getParticipantCount());
+    }
+
+    @Test
+    void testChangesStopAtGap() {
+        long since = engagementService.getChangesSince(0).getVersion();
+
+        long reserved = ChangeVersion.increment(ChangeFeed.ENGAGEMENTS, 1);
+        engagementService.updateCount("uuid1", 98, "participantCount");
+
+        ChangeSet changes = engagementService.getChangesSince(since);
+        assertEquals(since, changes.getVersion());
+        assertTrue(changes.getUuids().isEmpty());
+
+        engagementChangeRepository.persist(EngagementChange.builder().version(reserved).uuid("uuid2").time(Instant.now()).build());
+
+        changes = engagementService.getChangesSince(since);
+        assertEquals(reserved + 1, changes.getVersion());
+        assertEquals(Set.of("uuid1", "uuid2"), changes.getUuids());
+
+        long lost = ChangeVersion.increment(ChangeFeed.ENGAGEMENTS, 2);
+        engagementChangeRepository.persist(EngagementChange.builder().version(lost).uuid("uuid2").time(Instant.now().minus(Duration.ofHours(1))).build());
+
+        changes = engagementService.getChangesSince(reserved + 1);
+        assertEquals(lost, changes.getVersion());
+        assertEquals(Set.of("uuid2"), changes.getUuids());
+    }
+
     @Test
     void testCreateException() {
         final Engagement engagement = Engagement.builder().customerName("Banana Hut").name("banana").build();
@@ -5,6 +5,8 @@ import com.redhat.labs.lodestar.engagements.exception.EngagementGitlabException;
 import com.redhat.labs.lodestar.engagements.mock.ExternalApiWireMock;
 import com.redhat.labs.lodestar.engagements.model.CreationDetails;
 import com.redhat.labs.lodestar.engagements.model.Engagement;
+import com.redhat.labs.lodestar.engagements.model.LegacyEngagement;
+import com.redhat.labs.lodestar.engagements.model.OutboxEntry;
 import com.redhat.labs.lodestar.engagements.repository.EngagementRepository;
 import com.redhat.labs.lodestar.engagements.rest.client.GitlabApiClient;
 import io.quarkus.test.common.QuarkusTestResource;
@@ -43,6 +45,7 @@ class GitlabServiceTest {
 
     @BeforeEach
     void init() {
+        OutboxEntry.deleteAll();
         engagementService.refresh();
     }
 
@@ -124,6 +127,39 @@ class GitlabServiceTest {
         Mockito.verify(gitlabApiClient).transferProject(20,24);
     }
 
+    @Test
+    void testUpdateUsesCachedLegacy() {
+        LegacyEngagement.deleteAll();
+        Instant now = Instant.now();
+
+        Engagement engagement = Engagement.builder().uuid("engagement-twelve").customerName("customer-twelve").name("engagement-twelve")
+                .region("na").type("Residency").createdDate(now).lastMessage("")
+                .creationDetails(CreationDetails.builder().createdOn(now).createdByUser("Billy Berue").createdByEmail("jack@beanstalk.com").build())
+                .projectId(12).build();
+
+        engagementRepository.persist(engagement);
+
+        gitlabService.updateEngagementInGitlab(engagement);
+        assertTrue(LegacyEngagement.findByProjectId(12).isPresent());
+
+        engagement.setLastMessage("");
+        gitlabService.updateEngagementInGitlab(engagement);
+
+        Mockito.verify(gitlabApiClient, Mockito.times(1)).getLegacyEngagement(12);
+    }
+
+    @Test
+    void testRefreshLegacy() {
+        LegacyEngagement.deleteAll();
+        LegacyEngagement.builder().projectId(12).lastCommitId("commit9").build().persist();
+
+        gitlabService.refreshLegacy(12, "commit9");
+        Mockito.verify(gitlabApiClient, Mockito.never()).getLegacyEngagement(12);
+
+        gitlabService.refreshLegacy(12, "commit10");
+        assertEquals("commit2", LegacyEngagement.findByProjectId(12).get().getLastCommitId());
+    }
+
     @Test
     void testDeleteEngagementError() {
         Engagement e = Engagement.builder().customerName("del").name("ete").projectId(10001).build();
@@ -0,0 +1,48 @@
+package com.redhat.labs.lodestar.engagements.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+import com.redhat.labs.lodestar.engagements.model.Lease;
+
+import io.quarkus.test.junit.QuarkusTest;
+
+@QuarkusTest
+class LeaseServiceTest {
+
+    @Inject
+    LeaseService leaseService;
+
+    @Test
+    void testRunIfLeader() {
+        String name = "test.lease";
+        AtomicInteger runs = new AtomicInteger();
+
+        assertTrue(leaseService.runIfLeader(name, runs::incrementAndGet));
+        long token = leaseService.getToken(name).orElseThrow();
+
+        assertTrue(leaseService.runIfLeader(name, runs::incrementAndGet));
+        assertEquals(token, leaseService.getToken(name).orElseThrow());
+
+        Lease.<Lease>mongoCollection().updateOne(Filters.eq("name", name), Updates.combine(Updates.set("owner", "other"),
+                Updates.inc("token", 1L), Updates.set("expires", Instant.now().plus(1, ChronoUnit.HOURS))));
+
+        assertFalse(leaseService.runIfLeader(name, runs::incrementAndGet));
+        assertTrue(leaseService.getToken(name).isEmpty());
+
+        Lease.<Lease>mongoCollection().updateOne(Filters.eq("name", name), Updates.set("expires", Instant.now()));
+
+        assertTrue(leaseService.runIfLeader(name, runs::incrementAndGet));
+        assertEquals(token + 2, leaseService.getToken(name).orElseThrow());
+        assertEquals(3, runs.get());
+    }
+}
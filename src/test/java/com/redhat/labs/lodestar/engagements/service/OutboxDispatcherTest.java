@@ -0,0 +1,92 @@
+package com.redhat.labs.lodestar.engagements.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Instant;
+
+import javax.inject.Inject;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.client.model.Filters;
+import com.redhat.labs.lodestar.engagements.mock.ExternalApiWireMock;
+import com.redhat.labs.lodestar.engagements.model.Engagement;
+import com.redhat.labs.lodestar.engagements.model.OutboxEntry;
+
+import io.quarkus.test.common.QuarkusTestResource;
+import io.quarkus.test.junit.QuarkusTest;
+
+@QuarkusTest
+@QuarkusTestResource(ExternalApiWireMock.class)
+class OutboxDispatcherTest {
+
+    @Inject
+    OutboxDispatcher dispatcher;
+
+    @Inject
+    Outbox outbox;
+
+    @BeforeEach
+    void setUp() {
+        OutboxEntry.deleteAll();
+    }
+
+    @Test
+    void testBackoff() {
+        assertEquals(dispatcher.initialBackoff, dispatcher.backoff(1));
+        assertEquals(dispatcher.initialBackoff.multipliedBy(4), dispatcher.backoff(3));
+        assertEquals(dispatcher.maxBackoff, dispatcher.backoff(40));
+    }
+
+    @Test
+    void testFailureIsKeptForRetry() throws InterruptedException {
+        String uuid = "outbox-failure";
+        Engagement engagement = Engagement.builder().uuid(uuid).projectId(8675309).build(); //gitlab answers 500
+
+        outbox.enqueue(EngagementService.UPDATE_STATUS, engagement);
+
+        OutboxEntry entry = null;
+        Instant giveUp = Instant.now().plusSeconds(5);
+        while(Instant.now().isBefore(giveUp) && (entry == null || entry.getLastError() == null)) {
+            Thread.sleep(100);
+            entry = Outbox.collection().find(Filters.eq("engagementUuid", uuid)).first();
+        }
+
+        assertNotNull(entry);
+        assertNotNull(entry.getLastError());
+        assertEquals(OutboxEntry.Status.PENDING, entry.getStatus());
+        assertEquals(1, entry.getAttempts());
+        assertTrue(entry.getDue().isAfter(Instant.now()));
+    }
+
+    @Test
+    void testLaterEntryWaitsForRetry() throws InterruptedException {
+        String uuid = "outbox-order";
+        Engagement engagement = Engagement.builder().uuid(uuid).projectId(8675309).build(); //gitlab answers 500
+
+        outbox.enqueue(EngagementService.UPDATE_ENGAGEMENT, engagement);
+        outbox.enqueue(EngagementService.DELETE_ENGAGEMENT, engagement);
+
+        OutboxEntry first = null;
+        OutboxEntry second = null;
+        Instant giveUp = Instant.now().plusSeconds(5);
+        while(Instant.now().isBefore(giveUp) && (first == null || first.getLastError() == null || second == null || !second.isBlocked())) {
+            Thread.sleep(100);
+            first = Outbox.collection().find(Filters.and(Filters.eq("engagementUuid", uuid), Filters.eq("type", EngagementService.UPDATE_ENGAGEMENT))).first();
+            second = Outbox.collection().find(Filters.and(Filters.eq("engagementUuid", uuid), Filters.eq("type", EngagementService.DELETE_ENGAGEMENT))).first();
+        }
+
+        assertNotNull(first);
+        assertNotNull(first.getLastError());
+        assertEquals(OutboxEntry.Status.PENDING, first.getStatus());
+        assertEquals(1, first.getAttempts());
+
+        assertNotNull(second);
+        assertTrue(second.isBlocked());
+        assertEquals(OutboxEntry.Status.PENDING, second.getStatus());
+        assertEquals(0, second.getAttempts());
+        assertNull(second.getLastError());
+        assertFalse(second.getDue().isBefore(first.getDue()));
+    }
+}
@@ -0,0 +1,58 @@
+package com.redhat.labs.lodestar.engagements.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+
+import javax.inject.Inject;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+import com.redhat.labs.lodestar.engagements.model.Engagement;
+import com.redhat.labs.lodestar.engagements.model.OutboxEntry;
+import com.redhat.labs.lodestar.engagements.model.OutboxEntry.Status;
+
+import io.quarkus.test.junit.QuarkusTest;
+
+@QuarkusTest
+class OutboxTest {
+
+    @Inject
+    Outbox outbox;
+
+    @BeforeEach
+    void setUp() {
+        OutboxEntry.deleteAll();
+    }
+
+    @Test
+    void testMergeUpdates() {
+        String uuid = "coalesce";
+        Instant now = Instant.now();
+        Engagement first = Engagement.builder().uuid(uuid).description("first").lastMessage("first edit").build();
+
+        OutboxEntry held = OutboxEntry.builder().type(EngagementService.UPDATE_ENGAGEMENT).engagementUuid(uuid).engagement(first)
+                .status(Status.PENDING).created(now).due(now.plus(1, ChronoUnit.HOURS)).build();
+        Outbox.collection().insertOne(held);
+
+        Engagement second = Engagement.builder().uuid(uuid).description("second").lastMessage("second edit").build();
+        assertTrue(outbox.merge(held, second));
+
+        OutboxEntry merged = Outbox.collection().find(Filters.eq("_id", held.id)).first();
+        assertNotNull(merged);
+        assertEquals("second", merged.getEngagement().getDescription());
+        assertEquals("first edit\nsecond edit", merged.getEngagement().getLastMessage());
+        assertEquals(1, merged.getCoalesced());
+        assertEquals(1, Outbox.collection().countDocuments(Filters.eq("engagementUuid", uuid)));
+
+        Outbox.collection().updateOne(Filters.eq("_id", held.id), Updates.set("status", Status.IN_PROGRESS.name()));
+        assertFalse(outbox.merge(merged, second));
+
+        merged.setType(EngagementService.DELETE_ENGAGEMENT);
+        assertFalse(outbox.merge(merged, second));
+    }
+}
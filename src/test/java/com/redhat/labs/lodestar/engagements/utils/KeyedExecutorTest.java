@@ -0,0 +1,62 @@
+package com.redhat.labs.lodestar.engagements.utils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class KeyedExecutorTest {
+
+    @Test
+    void testOrderedPerKey() throws InterruptedException {
+        KeyedExecutor executor = new KeyedExecutor("test.lane", 4, 200, new SimpleMeterRegistry());
+        List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(100);
+
+        for(int i = 0; i < 100; i++) {
+            int task = i;
+            executor.submit("uuid1", () -> {
+                seen.add(task);
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for(int i = 0; i < 100; i++) {
+            assertEquals(i, seen.get(i));
+        }
+
+        executor.shutdown();
+    }
+
+    @Test
+    void testLaneQueueIsBounded() throws InterruptedException {
+        KeyedExecutor executor = new KeyedExecutor("test.bounded", 1, 1, new SimpleMeterRegistry());
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+
+        executor.submit("a", () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        executor.submit("b", () -> {}); //waits in the queue
+        assertThrows(RejectedExecutionException.class, () -> executor.submit("c", () -> {}));
+
+        release.countDown();
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,124 @@
+package com.redhat.labs.lodestar.engagements.utils;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.redhat.labs.lodestar.engagements.model.CreationDetails;
+import com.redhat.labs.lodestar.engagements.model.Engagement;
+import com.redhat.labs.lodestar.engagements.model.Launch;
+import com.redhat.labs.lodestar.engagements.model.UseCase;
+
+/**
+ * Legacy engagement.json rendering on update. The gson round trip is the implementation LegacyJsonWriter replaced.
+ * Not run by the build. Run main from the test classpath. The gc profiler reports allocation per op.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LegacyJsonBenchmark {
+
+    static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    JsonMarshaller json;
+    LegacyJsonWriter writer;
+    Engagement engagement;
+    String legacy;
+
+    @Setup
+    public void setup() {
+        json = new JsonMarshaller();
+        writer = new LegacyJsonWriter();
+        writer.json = json;
+        writer.setup();
+
+        engagement = engagement();
+        legacy = legacy(50);
+    }
+
+    @Benchmark
+    public String gsonRoundTrip() {
+        return gsonLegacyJson(json, engagement, GSON.fromJson(legacy, JsonElement.class).getAsJsonObject());
+    }
+
+    @Benchmark
+    public String streaming() {
+        return writer.write(engagement, writer.readPreserved(legacy));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(LegacyJsonBenchmark.class.getSimpleName()).addProfiler(GCProfiler.class).build()).run();
+    }
+
+    static String gsonLegacyJson(JsonMarshaller json, Engagement e, JsonObject legacyJsonObject) {
+        JsonObject v2FullObject = GSON.fromJson(json.toJson(e), JsonElement.class).getAsJsonObject();
+
+        v2FullObject.add("hosting_environments", legacyJsonObject.get("hosting_environments"));
+        v2FullObject.add("engagement_users", legacyJsonObject.get("engagement_users"));
+        v2FullObject.add("artifacts", legacyJsonObject.get("artifacts"));
+        v2FullObject.add("engagement_type", v2FullObject.get("type"));
+        v2FullObject.add("engagement_region", v2FullObject.get("region"));
+        v2FullObject.add("project_name", v2FullObject.get("name"));
+        v2FullObject.remove("participant_count");
+        v2FullObject.remove("hosting_count");
+        v2FullObject.remove("artifact_count");
+        v2FullObject.remove("last_message");
+
+        JsonObject sorted = new JsonObject();
+        v2FullObject.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(es -> sorted.add(es.getKey(), es.getValue()));
+
+        return GSON.toJson(sorted);
+    }
+
+    static Engagement engagement() {
+        Instant now = Instant.parse("2021-08-16T00:22:53.002243Z");
+
+        return Engagement.builder().uuid("uuid1").type("Residency").customerName("Banana Hut").name("banana").region("na")
+                .creationDetails(CreationDetails.builder().createdOn(now).createdByUser("Billy Berue").createdByEmail("billy@example.com").build())
+                .launch(Launch.builder().launchedDateTime(now).launchedBy("Launcher").launchedByEmail("launch@example.com").build())
+                .categories(new TreeSet<>(Set.of("mat", "pat", "rat")))
+                .useCases(List.of(UseCase.builder().uuid("uc1").title("Use case").description("Description").order(1).created(now).build(),
+                        UseCase.builder().uuid("uc2").title("Other").description("Another").order(2).created(now).build()))
+                .description("A <b>description</b> & it's = to \"this\"\u2028\u0001").lastMessage("Summary Update").lastUpdateByName("Updater").lastUpdateByEmail("updater@example.com")
+                .location("Raleigh").engagementLeadName("Lead").engagementLeadEmail("lead@example.com").timezone("America/New_York")
+                .publicReference(true).projectId(1).startDate(now).endDate(now).createdDate(now).lastUpdate(now)
+                .participantCount(12).hostingCount(2).artifactCount(4).build();
+    }
+
+    static String legacy(int users) {
+        StringBuilder builder = new StringBuilder("{\n  \"customer_name\": \"Banana Hut\",\n  \"engagement_users\": [");
+        for(int i = 0; i < users; i++) {
+            builder.append(i == 0 ? "" : ",").append("{ \"uuid\": \"user").append(i).append("\", \"email\": \"user").append(i)
+                    .append("@example.com\", \"first_name\": \"First\", \"last_name\": \"Last\", \"role\": \"developer\", \"reset\": false }");
+        }
+        builder.append("],\n  \"hosting_environments\": [{ \"environment_name\": \"env\", \"ocp_cloud_provider_name\": \"aws\", \"ocp_persistent_storage_size\": 50 }],");
+        builder.append("\n  \"artifacts\": [{ \"title\": \"Demo <one> & 'two' = \\u0026\", \"linkAddress\": \"http://example.com\", \"type\": \"demo\" }],");
+        builder.append("\n  \"launch\": { \"launched_by\": \"Launcher\" },\n  \"use_cases\": [{ \"title\": \"old\" }]\n}");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,78 @@
+package com.redhat.labs.lodestar.engagements.utils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.redhat.labs.lodestar.engagements.model.Engagement;
+
+class LegacyJsonWriterTest {
+
+    JsonMarshaller json;
+    LegacyJsonWriter writer;
+
+    @BeforeEach
+    void setup() {
+        json = new JsonMarshaller();
+        writer = new LegacyJsonWriter();
+        writer.json = json;
+        writer.setup();
+    }
+
+    @Test
+    void testSameAsGsonRoundTrip() {
+        Engagement engagement = LegacyJsonBenchmark.engagement();
+        String legacy = LegacyJsonBenchmark.legacy(3);
+
+        String expected = LegacyJsonBenchmark.gsonLegacyJson(json, engagement, JsonParser.parseString(legacy).getAsJsonObject());
+        String actual = writer.write(engagement, writer.readPreserved(legacy));
+
+        assertEquals(JsonParser.parseString(expected), JsonParser.parseString(actual));
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    void testCreateWithoutLegacy() {
+        Engagement engagement = Engagement.builder().uuid("uuid1").name("banana").type("Residency").build();
+
+        String expected = LegacyJsonBenchmark.gsonLegacyJson(json, engagement, new JsonObject());
+        String actual = writer.write(engagement, Collections.emptyMap());
+
+        assertEquals(expected, actual);
+
+        JsonObject legacy = JsonParser.parseString(actual).getAsJsonObject();
+        assertEquals("banana", legacy.get("project_name").getAsString());
+        assertFalse(legacy.has("region"));
+        assertFalse(legacy.has("engagement_users"));
+        assertFalse(legacy.has("participant_count"));
+    }
+
+    @Test
+    void testReadPreserved() {
+        Map<String, JsonNode> preserved = writer.readPreserved(LegacyJsonBenchmark.legacy(3));
+
+        assertEquals(LegacyJsonWriter.PRESERVED, preserved.keySet());
+        assertEquals(3, preserved.get("engagement_users").size());
+
+        preserved = writer.readPreserved("{ \"artifacts\": null, \"launch\": { \"artifacts\": [] } }");
+        assertTrue(preserved.isEmpty());
+        assertTrue(writer.readPreserved(null).isEmpty());
+    }
+
+    @Test
+    void testEmptyContainers() {
+        Engagement engagement = Engagement.builder().uuid("uuid1").build();
+        JsonElement written = JsonParser.parseString(writer.write(engagement, writer.readPreserved("{ \"artifacts\": [] }")));
+
+        assertEquals(0, written.getAsJsonObject().get("artifacts").getAsJsonArray().size());
+        assertTrue(writer.write(engagement, Collections.emptyMap()).contains("\"use_cases\": []"));
+    }
+}
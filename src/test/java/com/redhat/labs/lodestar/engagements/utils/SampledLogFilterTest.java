@@ -0,0 +1,21 @@
+package com.redhat.labs.lodestar.engagements.utils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.jupiter.api.Test;
+
+class SampledLogFilterTest {
+
+    @Test
+    void testSamplesByRequestId() {
+        SampledLogFilter filter = new SampledLogFilter(10);
+
+        assertTrue(filter.isLoggable(new LogRecord(Level.INFO, "20 * Sending client request")));
+        assertTrue(filter.isLoggable(new LogRecord(Level.INFO, "20 * Received server response")));
+        assertFalse(filter.isLoggable(new LogRecord(Level.INFO, "21 * Sending client request")));
+        assertTrue(filter.isLoggable(new LogRecord(Level.INFO, "no id")));
+    }
+}